@@ -1,24 +1,294 @@
 package peer;
 
-import java.io.Serializable;
+import java.io.EOFException;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  * A chunk of maximum 1 MB of data from a file
+ * Only the bytes_written valid bytes are sent, after a small header, and received slices
+ * take their buffer from a pool that they can be given back to with release()
+ * The header byte holds the format version in its low bits and the codec of the data, if it is compressed,
+ * in its high bits, see SliceCodec
  */
-public class ByteSlice implements Serializable {
-    private final byte[] bytes;
-    private final int bytes_written;
+public class ByteSlice implements Externalizable {
+    /**
+     * Version of the wire format, written in the header
+     */
+    private static final byte FORMAT_VERSION = 1;
+    /**
+     * Bits of the header byte holding the format version, the rest hold the codec
+     */
+    private static final int VERSION_MASK = 0x0f;
+    /**
+     * Size of the buffers kept in the receive pool, 1 MB, which is also the largest slice accepted from a peer
+     */
+    private static final int POOLED_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Maximum number of idle buffers kept in the receive pool
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+    /**
+     * Buffers of released slices, reused by the next slices received
+     */
+    private static final ArrayDeque<byte[]> buffer_pool = new ArrayDeque<>();
+    /**
+     * Temporary array used to send slices that are views, so they are not copied whole
+     */
+    private static final ThreadLocal<byte[]> send_buffer = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    /**
+     * Temporary array where compressed slices are received before being decompressed into their buffer
+     */
+    private static final ThreadLocal<byte[]> compressed_buffer = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private byte[] bytes;
+    private int bytes_written;
+    /**
+     * Read-only view of the data when the slice is served from a memory mapping, never sent
+     * The bytes are only copied out of it when they are needed or when the slice is serialized
+     */
+    private transient ByteBuffer view;
+    /**
+     * True if bytes was taken from the receive pool
+     */
+    private transient boolean pooled;
+    /**
+     * True if bytes goes back to the pool as soon as the slice has been sent, for copies made to be sent once
+     */
+    private transient boolean release_after_send;
+    /**
+     * Compressed form of the data, the only one a seeder keeps for a slice it sends compressed
+     */
+    private transient byte[] deflated;
+
+    /**
+     * Constructor used by the serialization, the fields are filled by readExternal()
+     */
+    public ByteSlice() {
+    }
 
     public ByteSlice(byte[] bytes, int bytes_written) {
         this.bytes = bytes;
         this.bytes_written = bytes_written;
     }
 
+    public ByteSlice(ByteBuffer view) {
+        this.view = view;
+        this.bytes_written = view.remaining();
+    }
+
+    /**
+     * Create a slice that is sent compressed with Deflater and decompressed by the receiver
+     *
+     * @param deflated      The compressed data
+     * @param bytes_written The size of the data once decompressed
+     * @return The slice
+     */
+    public static ByteSlice deflated(byte[] deflated, int bytes_written) {
+        ByteSlice slice = new ByteSlice();
+        slice.deflated = deflated;
+        slice.bytes_written = bytes_written;
+        return slice;
+    }
+
+    /**
+     * Copy data into a buffer of the pool, which is given back to the pool once the slice has been sent
+     *
+     * @param data The data, from its position to its limit
+     * @return The slice
+     */
+    public static ByteSlice pooled_copy(ByteBuffer data) {
+        if (data.remaining() > POOLED_BUFFER_SIZE) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return new ByteSlice(bytes, bytes.length);
+        }
+        ByteSlice slice = new ByteSlice();
+        slice.bytes_written = data.remaining();
+        slice.take_buffer();
+        data.get(slice.bytes, 0, slice.bytes_written);
+        slice.release_after_send = true;
+        return slice;
+    }
+
     public int getBytes_written() {
         return bytes_written;
     }
 
-    public byte[] getBytes() {
+    /**
+     * Get the number of data bytes this slice takes when it is sent
+     *
+     * @return The compressed size if the slice is sent compressed, bytes_written otherwise
+     */
+    public synchronized int getWire_size() {
+        return deflated != null ? deflated.length : bytes_written;
+    }
+
+    public synchronized byte[] getBytes() {
+        if (bytes == null && deflated != null) {
+            bytes = new byte[bytes_written];
+            try {
+                SliceCodec.decompress(deflated, deflated.length, bytes, bytes_written);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            deflated = null;
+        } else if (bytes == null) {
+            bytes = new byte[bytes_written];
+            view.duplicate().get(bytes);
+            view = null;
+        }
         return bytes;
     }
+
+    /**
+     * Cut the slice to its first bytes, like the last slice of a chunk read from the longer file it is assembled in
+     * A slice that is cut gives its buffer back to the pool if it had one
+     *
+     * @param length The number of bytes to keep
+     * @return This slice if it is not longer than length, a slice with its first bytes otherwise
+     */
+    public synchronized ByteSlice truncated(int length) {
+        if (bytes_written <= length) {
+            return this;
+        }
+        if (view != null) {
+            ByteBuffer first = view.duplicate();
+            first.limit(first.position() + length);
+            return new ByteSlice(first.slice());
+        }
+        ByteSlice cut = new ByteSlice(Arrays.copyOf(getBytes(), length), length);
+        release();
+        return cut;
+    }
+
+    /**
+     * Give the buffer of a received slice back to the pool, the slice can't be used after this
+     * Slices whose buffer was not taken from the pool are left untouched
+     */
+    public synchronized void release() {
+        if (!pooled) {
+            return;
+        }
+        synchronized (buffer_pool) {
+            if (buffer_pool.size() < MAX_POOLED_BUFFERS) {
+                buffer_pool.push(bytes);
+            }
+        }
+        pooled = false;
+        bytes = null;
+    }
+
+    @Override
+    public synchronized void writeExternal(ObjectOutput out) throws IOException {
+        if (deflated != null) {
+            out.writeByte(FORMAT_VERSION | SliceCodec.CODEC_DEFLATE << 4);
+            out.writeInt(bytes_written);
+            out.writeInt(deflated.length);
+            out.write(deflated);
+            return;
+        }
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(bytes_written);
+        if (bytes != null) {
+            out.write(bytes, 0, bytes_written);
+            if (release_after_send) {
+                release();
+            }
+            return;
+        }
+        ByteBuffer data = view.duplicate();
+        byte[] chunk = send_buffer.get();
+        while (data.hasRemaining()) {
+            int amount = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, amount);
+            out.write(chunk, 0, amount);
+        }
+    }
+
+    @Override
+    public synchronized void readExternal(ObjectInput in) throws IOException {
+        byte header = in.readByte();
+        int version = header & VERSION_MASK;
+        int codec = (header & 0xff) >> 4;
+        if (version != FORMAT_VERSION || (codec != 0 && codec != SliceCodec.CODEC_DEFLATE)) {
+            throw new StreamCorruptedException("Unknown ByteSlice format " + header);
+        }
+        bytes_written = check_length(in.readInt());
+        take_buffer();
+        if (codec == 0) {
+            in.readFully(bytes, 0, bytes_written);
+            return;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > bytes_written) {
+            throw new StreamCorruptedException("Compressed ByteSlice length not valid");
+        }
+        byte[] received = compressed_buffer.get();
+        if (received.length < length) {
+            received = new byte[length];
+            compressed_buffer.set(received);
+        }
+        in.readFully(received, 0, length);
+        SliceCodec.decompress(received, length, bytes, bytes_written);
+    }
+
+    /**
+     * Read a slice from a data plane connection into a buffer of the receive pool
+     *
+     * @param channel The connection
+     * @param length  The number of bytes of the slice
+     * @return The slice
+     * @throws IOException If the connection fails or ends before
+     */
+    public static ByteSlice receive(ReadableByteChannel channel, int length) throws IOException {
+        ByteSlice slice = new ByteSlice();
+        slice.bytes_written = check_length(length);
+        slice.take_buffer();
+        ByteBuffer buffer = ByteBuffer.wrap(slice.bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed in the middle of a slice");
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * Check the length of a slice sent by a peer before any buffer is taken for it
+     * A slice is never larger than a pooled buffer, a larger length comes from a broken or malicious peer
+     *
+     * @param length The length received
+     * @return The length
+     * @throws StreamCorruptedException If it is negative or larger than a slice
+     */
+    private static int check_length(int length) throws StreamCorruptedException {
+        if (length < 0) {
+            throw new StreamCorruptedException("Negative ByteSlice length");
+        }
+        if (length > POOLED_BUFFER_SIZE) {
+            throw new StreamCorruptedException("ByteSlice length " + length + " is larger than a slice");
+        }
+        return length;
+    }
+
+    /**
+     * Get a buffer for bytes_written bytes from the receive pool
+     */
+    private void take_buffer() {
+        synchronized (buffer_pool) {
+            bytes = buffer_pool.poll();
+        }
+        if (bytes == null) {
+            bytes = new byte[POOLED_BUFFER_SIZE];
+        }
+        pooled = true;
+    }
 }
@@ -0,0 +1,129 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU pool of read-only FileChannels, one per hash, so a file is not reopened on every slice request
+ * Channels are reference counted, an evicted channel is only closed when its last user releases it
+ */
+public class ChannelPool {
+    /**
+     * Maximum number of channels kept open at once
+     */
+    private final int capacity;
+    /**
+     * Open channels in access order, the eldest one is the first to be evicted
+     */
+    private final LinkedHashMap<String, PooledChannel> channels;
+
+    /**
+     * Constructor for ChannelPool
+     *
+     * @param capacity maximum number of channels kept open at once
+     */
+    public ChannelPool(int capacity) {
+        this.capacity = capacity;
+        this.channels = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the channel of a file, opening it if it is not in the pool
+     * Every call must be matched by a call to release()
+     *
+     * @param hash  The hash of the file
+     * @param route The local route of the file
+     * @return The pooled channel
+     * @throws IOException If the file can't be opened
+     */
+    public synchronized PooledChannel acquire(String hash, String route) throws IOException {
+        PooledChannel pooled = channels.get(hash);
+        if (pooled == null) {
+            pooled = new PooledChannel(FileChannel.open(Paths.get(route), StandardOpenOption.READ));
+            channels.put(hash, pooled);
+            evict();
+        }
+        pooled.users++;
+        return pooled;
+    }
+
+    /**
+     * Give back a channel obtained with acquire()
+     *
+     * @param pooled The channel to give back
+     */
+    public synchronized void release(PooledChannel pooled) {
+        pooled.users--;
+        if (pooled.evicted && pooled.users == 0) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Remove the channel of a file from the pool
+     *
+     * @param hash The hash of the file
+     */
+    public synchronized void remove(String hash) {
+        PooledChannel pooled = channels.remove(hash);
+        if (pooled != null) {
+            retire(pooled);
+        }
+    }
+
+    /**
+     * Remove the least recently used channels until the pool fits its capacity
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, PooledChannel>> iterator = channels.entrySet().iterator();
+        while (channels.size() > capacity && iterator.hasNext()) {
+            PooledChannel eldest = iterator.next().getValue();
+            iterator.remove();
+            retire(eldest);
+        }
+    }
+
+    /**
+     * Close a channel now if nobody is reading from it, or when its last user releases it
+     *
+     * @param pooled The channel that leaves the pool
+     */
+    private void retire(PooledChannel pooled) {
+        pooled.evicted = true;
+        if (pooled.users == 0) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * A FileChannel with the number of threads currently using it
+     */
+    public static class PooledChannel {
+        final FileChannel channel;
+        int users;
+        boolean evicted;
+
+        PooledChannel(FileChannel channel) {
+            this.channel = channel;
+            this.users = 0;
+            this.evicted = false;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                PeerImp.logger.info("IOException while closing a pooled channel");
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The file a download by chunks is assembled in
+ * Every chunk is written straight at its offset of a single preallocated hidden .part file, shared by the
+ * downloads of all the chunks, so there are no chunk files to merge and the disk never holds the file twice
+ * The CRC32 of the whole file is computed while the slices arrive: from the bytes in memory when a slice extends
+ * the hashed start of the file, and reading back the slices that arrived before it, so the complete file is
+ * checked against the hash asked for and added to the contents without hashing it again
+ */
+public class ChunkAssembly {
+    /**
+     * Assemblies in progress, by the location of the file
+     */
+    private static final ConcurrentHashMap<Path, ChunkAssembly> assemblies = new ConcurrentHashMap<>();
+    /**
+     * Location of the complete file
+     */
+    private final Path location;
+    /**
+     * The hash of the whole file, the CRC32 the assembled file must have
+     */
+    private final String file_hash;
+    /**
+     * The hashes of every chunk, in order
+     */
+    private final List<String> chunk_hashes;
+    private final ContentManager manager;
+    private final int slice_size;
+    /**
+     * Channel of the .part file, shared by the downloads of all the chunks
+     */
+    private final FileChannel target;
+    /**
+     * Size the .part file was preallocated with
+     */
+    private final long preallocated;
+    /**
+     * Chunks whose slices have all been written
+     */
+    private final BitSet chunks_done;
+    /**
+     * Journals of the finished chunks, kept until the file is complete so a restart knows they are finished
+     */
+    private final List<SliceJournal> journals = new ArrayList<>();
+    /**
+     * Slices of the whole file that have been written
+     */
+    private final BitSet written = new BitSet();
+    private final CRC32 crc = new CRC32();
+    /**
+     * Number of slices at the start of the file already added to the CRC
+     */
+    private int digested;
+    /**
+     * Buffer used to read back the slices added to the CRC after they were written
+     */
+    private ByteBuffer read_buffer;
+    /**
+     * Size of the file, known when its last chunk is finished
+     */
+    private long file_size = -1;
+    /**
+     * The .part file as a content with the hash of the whole file, the finished chunks are shared from it until the
+     * file is complete, as chunks of the same file the other peers know
+     */
+    private final Content partial;
+    /**
+     * True if the .part file did not exist, so the journals of its chunks left by a previous run are worthless
+     */
+    private final boolean created;
+
+    private ChunkAssembly(Path location, String file_hash, List<String> chunk_hashes, ContentManager manager)
+            throws IOException {
+        this.location = location;
+        this.file_hash = file_hash;
+        this.chunk_hashes = chunk_hashes;
+        this.manager = manager;
+        this.slice_size = manager.getSlice_size();
+        this.chunks_done = new BitSet(chunk_hashes.size());
+        Path part = part_path(location);
+        this.created = !Files.exists(part);
+        RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw");
+        this.preallocated = (long) chunk_hashes.size() * VirtualChunk.CHUNK_SLICES * slice_size;
+        if (file.length() < preallocated) {
+            file.setLength(preallocated);
+        }
+        this.target = file.getChannel();
+        this.partial = new Content(new ArrayList<>(Collections.singleton(part.getFileName().toString())),
+                new ArrayList<>(), file_hash, new ArrayList<>());
+        this.partial.setLocal_route(part.toAbsolutePath().toString());
+    }
+
+    /**
+     * Get the hidden file a file is assembled in
+     *
+     * @param location Location of the complete file
+     * @return The path of its .part file
+     */
+    public static Path part_path(Path location) {
+        return location.resolveSibling("." + location.getFileName() + ".part");
+    }
+
+    /**
+     * Get the assembly of a file, opening its .part file if no chunk of it is being downloaded
+     *
+     * @param location     Location of the complete file
+     * @param file_hash    The hash of the whole file
+     * @param chunk_hashes The hashes of every chunk of the file, in order
+     * @param manager      The manager the complete file is added to
+     * @return The assembly
+     * @throws IOException If the .part file can't be opened
+     */
+    public static ChunkAssembly open(Path location, String file_hash, List<String> chunk_hashes,
+                                     ContentManager manager) throws IOException {
+        synchronized (assemblies) {
+            ChunkAssembly assembly = assemblies.get(location);
+            if (assembly == null) {
+                assembly = new ChunkAssembly(location, file_hash, chunk_hashes, manager);
+                assemblies.put(location, assembly);
+            }
+            return assembly;
+        }
+    }
+
+    /**
+     * Check if the .part file was created by this assembly instead of being left by a previous run
+     *
+     * @return True if it was created
+     */
+    public boolean is_new() {
+        return created;
+    }
+
+    public FileChannel getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the position of a chunk in the file
+     *
+     * @param chunk_index The index of the chunk
+     * @return The offset of its first byte
+     */
+    public long offset_of(int chunk_index) {
+        return (long) chunk_index * VirtualChunk.CHUNK_SLICES * slice_size;
+    }
+
+    /**
+     * Record the slices of a chunk that were written before a restart
+     *
+     * @param chunk_index The index of the chunk
+     * @param completed   The slices of the chunk in the file
+     * @throws IOException If reading them back for the CRC fails
+     */
+    public synchronized void restore(int chunk_index, BitSet completed) throws IOException {
+        int first = chunk_index * VirtualChunk.CHUNK_SLICES;
+        for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+            written.set(first + i);
+        }
+        advance();
+    }
+
+    /**
+     * Record a slice that has just been written, adding it to the CRC if it extends the hashed start of the file
+     *
+     * @param chunk_index The index of the chunk
+     * @param slice_index The index of the slice in the chunk
+     * @param bytes       The data of the slice
+     * @param length      Number of valid bytes in data
+     * @throws IOException If reading back the slices after it fails
+     */
+    public synchronized void slice_written(int chunk_index, int slice_index, byte[] bytes, int length)
+            throws IOException {
+        int slice = chunk_index * VirtualChunk.CHUNK_SLICES + slice_index;
+        if (written.get(slice)) {
+            return;
+        }
+        written.set(slice);
+        if (slice == digested) {
+            crc.update(bytes, 0, length);
+            digested++;
+        }
+        advance();
+    }
+
+    /**
+     * Add to the CRC the slices after the hashed start of the file that are already written, reading them back
+     * The slices of the last chunk are left for finish(), the size of the last one may not be known yet
+     *
+     * @throws IOException If reading fails
+     */
+    private void advance() throws IOException {
+        int full_slices = (chunk_hashes.size() - 1) * VirtualChunk.CHUNK_SLICES;
+        while (digested < full_slices && written.get(digested)) {
+            read_back((long) digested * slice_size, slice_size);
+            digested++;
+        }
+    }
+
+    /**
+     * Read a range of the file and add it to the CRC
+     *
+     * @param position The offset of the range
+     * @param length   The number of bytes, at most one slice
+     * @throws IOException If reading fails
+     */
+    private void read_back(long position, int length) throws IOException {
+        if (read_buffer == null) {
+            read_buffer = ByteBuffer.allocate(slice_size);
+        }
+        read_buffer.clear();
+        read_buffer.limit(length);
+        while (read_buffer.hasRemaining()) {
+            if (target.read(read_buffer, position + read_buffer.position()) < 0) {
+                throw new IOException("The file being assembled is shorter than its slices");
+            }
+        }
+        crc.update(read_buffer.array(), 0, length);
+    }
+
+    /**
+     * Record that every slice of a chunk has been written, and finish the file if it was the last chunk missing
+     * Other chunks with the same hash are copied from it instead of being downloaded
+     *
+     * @param chunk_index The index of the chunk
+     * @param chunk_size  The size of the chunk in bytes
+     * @param journal     The journal of the chunk, deleted when the file is complete
+     * @return True if the file is complete, even if it did not match its hash
+     * @throws IOException If copying, reading back or moving the file fails
+     */
+    public synchronized boolean chunk_finished(int chunk_index, long chunk_size, SliceJournal journal)
+            throws IOException {
+        if (file_size >= 0 && chunks_done.cardinality() == chunk_hashes.size()) {
+            return true;
+        }
+        journals.add(journal);
+        String hash = chunk_hashes.get(chunk_index);
+        for (int i = 0; i < chunk_hashes.size(); i++) {
+            if (chunks_done.get(i) || !chunk_hashes.get(i).equals(hash)) {
+                continue;
+            }
+            if (i != chunk_index) {
+                copy_chunk(chunk_index, i, chunk_size);
+            }
+            chunks_done.set(i);
+            int first = i * VirtualChunk.CHUNK_SLICES;
+            written.set(first, first + (int) Math.ceil(chunk_size / (float) slice_size));
+            if (i == chunk_hashes.size() - 1) {
+                file_size = offset_of(i) + chunk_size;
+            }
+        }
+        advance();
+        if (chunks_done.cardinality() < chunk_hashes.size()) {
+            manager.add_verified_chunks(partial, location.getFileName().toString(), chunk_hashes, chunks_done,
+                    file_size >= 0 ? file_size : preallocated);
+            return false;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Copy a chunk to the position of another chunk with the same hash
+     *
+     * @param from       The index of the chunk written
+     * @param to         The index of the chunk to fill
+     * @param chunk_size The size of the chunk in bytes
+     * @throws IOException If reading or writing fails
+     */
+    private void copy_chunk(int from, int to, long chunk_size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(slice_size);
+        for (long copied = 0; copied < chunk_size; copied += buffer.limit()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(slice_size, chunk_size - copied));
+            while (buffer.hasRemaining()) {
+                if (target.read(buffer, offset_of(from) + copied + buffer.position()) < 0) {
+                    throw new IOException("The file being assembled is shorter than its chunks");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer, offset_of(to) + copied + buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Complete the CRC with the last chunk, trim the file to its size, and if the CRC is the hash of the file move it
+     * to its location and add it, and its chunks, to the contents
+     * A file that does not match its hash is left in its .part file with the journals, and is never shared
+     *
+     * @throws IOException If reading or moving the file fails
+     */
+    private void finish() throws IOException {
+        assemblies.remove(location);
+        try {
+            for (long position = (long) digested * slice_size; position < file_size; position += slice_size) {
+                read_back(position, (int) Math.min(slice_size, file_size - position));
+            }
+            target.truncate(file_size);
+        } finally {
+            read_buffer = null;
+            target.close();
+        }
+        String hash = Long.toHexString(crc.getValue());
+        if (!hash.equals(file_hash)) {
+            PeerImp.logger.severe("File " + location.getFileName() + " was assembled with hash " + hash + " instead of "
+                    + file_hash + ", it is kept in " + part_path(location).getFileName() + " and not shared");
+            return;
+        }
+        Files.move(part_path(location), location, StandardCopyOption.REPLACE_EXISTING);
+        for (SliceJournal journal : journals) {
+            journal.delete();
+        }
+        File file = location.toFile();
+        manager.add_verified_file(hash, file);
+        Content whole = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(), hash,
+                new ArrayList<>());
+        whole.setLocal_route(file.getAbsolutePath());
+        manager.add_verified_chunks(whole, file.getName(), chunk_hashes, chunks_done, file_size);
+        PeerImp.logger.severe("File " + file.getName() + " assembled from " + chunk_hashes.size() + " chunks");
+    }
+}
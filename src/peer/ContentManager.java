@@ -6,13 +6,20 @@ import common.TagXML;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 /**
@@ -28,22 +35,92 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     private final List<Content> contents;
     /**
-     * Semaphore to control uploading concurrency
+     * Upload slots shared among the downloaders, with choking and unchoking
      */
-    private final Semaphore upload_semaphore;
+    private final UploadSlots upload_slots;
     /**
      * The size of a slice that will be sent over the network, 1 MB (in bytes)
      */
     private final int slice_size = 1024 * 1024;
+    /**
+     * Maximum number of bytes that can be requested at once with get_range, 64 MB
+     */
+    private static final int MAX_RANGE = 64 * 1024 * 1024;
     /**
      * Own peerInfo for web services peers
      */
     private final PeerInfo info;
 
     /**
-     * Cache hashmap to store likely-to-be-downloaded files
+     * Cache to store likely-to-be-downloaded slices
+     */
+    private final SliceCache cache;
+
+    /**
+     * Slices being read from the disk right now, keyed by hash:slice_index, shared by every thread asking for them
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<ByteSlice>> loading;
+
+    /**
+     * Reads the next slices of files being downloaded sequentially into the cache
+     */
+    private final ReadAheadPrefetcher prefetcher;
+
+    /**
+     * Merkle trees of the shared files, computed the first time a downloader asks for them
+     */
+    private final ConcurrentHashMap<String, MerkleTree> merkle_trees;
+
+    /**
+     * Hashes of the shared files, kept in the shared folder so only new or changed files are hashed
+     */
+    private final HashIndex hash_index;
+
+    /**
+     * Lists the shared folder, hashing the files missing from the hash index in parallel
      */
-    private final HashMap<String, ByteSlice[]> cache;
+    private final FolderIndexer indexer;
+
+    /**
+     * The contents that are files of this node, by hash, updated along with contents
+     * Slices are served from it, so the threads serving them never iterate contents while it changes
+     */
+    private final ConcurrentHashMap<String, Content> shared;
+
+    /**
+     * Chunks of the large shared files, by the hash of the whole file
+     */
+    private final ConcurrentHashMap<String, List<VirtualChunk>> file_chunks;
+
+    /**
+     * Chunks of the large shared files, by their own hash
+     */
+    private final ConcurrentHashMap<String, VirtualChunk> chunks;
+
+    /**
+     * Reads the slices of the shared files from the disk
+     */
+    private final SliceReader slice_reader;
+
+    /**
+     * True when slices are served from memory mappings, which live in the OS page cache instead of the cache
+     */
+    private final boolean mapped_serving;
+
+    /**
+     * Compresses the slices sent to downloaders that accept it and keeps them compressed
+     */
+    private final SliceCodec codec;
+
+    /**
+     * Limits the bytes per second uploaded, in total and to every downloader
+     */
+    private final UploadLimiter upload_limiter;
+
+    /**
+     * Server of the data plane, null if it is disabled or could not start
+     */
+    private final DataServer data_server;
 
     /**
      * Logger used to print INFO, WARNINGS and SEVERES
@@ -61,15 +138,50 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      * @param folder_route the route of the folder
      * @throws RemoteException when remote calls fail
      */
-    public ContentManager(String folder_route, Semaphore upload_semaphore, Logger logger, PeerInfo info) throws RemoteException {
-        super();
+    public ContentManager(String folder_route, UploadSlots upload_slots, Logger logger, PeerInfo info) throws RemoteException {
+        super(0, TunedSocketFactory.for_objects(), TunedSocketFactory.for_objects());
         this.folder_route = folder_route;
         this.contents = new ArrayList<>();
-        this.upload_semaphore = upload_semaphore;
-        cache = new HashMap<>();
+        this.upload_slots = upload_slots;
+        cache = new SliceCache(Long.getLong("duchnet.cache.mb", 64L) * 1024 * 1024, slice_size,
+                Boolean.getBoolean("duchnet.cache.offheap"));
+        this.loading = new ConcurrentHashMap<>();
+        this.upload_limiter = new UploadLimiter(Long.getLong("duchnet.upload.kbps", 0L) * 1024,
+                Long.getLong("duchnet.upload.peer.kbps", 0L) * 1024);
+        this.codec = new SliceCodec(Long.getLong("duchnet.compress.cache.mb", 32L) * 1024 * 1024);
+        this.merkle_trees = new ConcurrentHashMap<>();
+        this.shared = new ConcurrentHashMap<>();
+        this.file_chunks = new ConcurrentHashMap<>();
+        this.hash_index = HashIndex.open(folder_route);
+        this.indexer = new FolderIndexer(hash_index, Integer.getInteger("duchnet.index.threads",
+                Math.min(8, Runtime.getRuntime().availableProcessors())));
+        this.chunks = new ConcurrentHashMap<>();
+        this.mapped_serving = "mmap".equalsIgnoreCase(System.getProperty("duchnet.serving", "positional"));
+        if (mapped_serving) {
+            this.slice_reader = new MappedSliceReader(slice_size, Long.getLong("duchnet.mmap.mb", 1024L) * 1024 * 1024);
+        } else {
+            this.slice_reader = new PositionalSliceReader(slice_size, Integer.getInteger("duchnet.channels", 16),
+                    upload_slots.getSlots());
+        }
+        this.prefetcher = new ReadAheadPrefetcher((prefetch_hash, route, slice_index) -> {
+            if (!cache.contains(prefetch_hash, slice_index)) {
+                load_slice(prefetch_hash, route, slice_index, true);
+            }
+        }, Integer.getInteger("duchnet.readahead", 8), 2);
         this.logger = logger;
         this.serviceClient = new ServiceClient(logger);
         this.info = info;
+        DataServer server = null;
+        if (Boolean.parseBoolean(System.getProperty("duchnet.data", "true"))) {
+            try {
+                server = DataServer.start(this, upload_slots, upload_limiter, slice_size,
+                        Integer.getInteger("duchnet.data.port", 0));
+                logger.info("Data plane listening on port " + server.getPort());
+            } catch (IOException e) {
+                logger.warning("The data plane could not start, slices will be sent through RMI");
+            }
+        }
+        this.data_server = server;
     }
 
     /**
@@ -121,6 +233,18 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
         return folder_route;
     }
 
+    public int getSlice_size() {
+        return slice_size;
+    }
+
+    public UploadLimiter getUpload_limiter() {
+        return upload_limiter;
+    }
+
+    public UploadSlots getUpload_slots() {
+        return upload_slots;
+    }
+
     public List<Content> getContents() {
         databaseUpdate();
         return this.contents;
@@ -189,28 +313,14 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
     public void list_files(boolean add_data) {
         // Just list local files
         if (!add_data) {
-            File f = new File(this.folder_route);
-            List<Content> extra_files = new LinkedList<>();
-            for (File file : Objects.requireNonNull(f.listFiles())) {
-                if (file.isFile()) {
-                    Content this_file = null;
-                    try {
-                        this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(), HashCalculator.getFileHash(file), new ArrayList<>());
-                    } catch (IOException e) {
-                        logger.severe("IOException while calculating file");
-                    } finally {
-                        assert this_file != null;
-                        this_file.setLocal_route(file.getAbsolutePath());
-                        extra_files.add(this_file);
-                    }
-                } else {
-                    extra_files.addAll(check_inside(file, null));
-                }
-            }
+            List<Content> extra_files = check_inside(new File(this.folder_route), null);
             merge_lists(contents, extra_files);
+            share(extra_files);
+            hash_index.save();
             databaseUpdate();
         } else {
             update_files(this.folder_route);
+            hash_index.save();
         }
     }
 
@@ -221,7 +331,6 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     public void list_filtered_files(String restriction) {
         File f = new File(this.folder_route);
-        List<Content> extra_files = new LinkedList<>();
         FileFilter filter = file -> {
             String restriction_method = restriction.split(":")[0];
             String restriction_term;
@@ -235,23 +344,10 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
             }
             return true;
         };
-        for (File file : Objects.requireNonNull(f.listFiles(filter))) {
-            if (file.isFile()) {
-                Content this_file = null;
-                try {
-                    this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(), HashCalculator.getFileHash(file), new ArrayList<>());
-                } catch (IOException e) {
-                    logger.severe("IOException while calculating hash");
-                } finally {
-                    assert this_file != null;
-                    this_file.setLocal_route(file.getAbsolutePath());
-                    extra_files.add(this_file);
-                }
-            } else {
-                extra_files.addAll(check_inside(file, filter));
-            }
-        }
+        List<Content> extra_files = check_inside(f, filter);
         merge_lists(contents, extra_files);
+        share(extra_files);
+        hash_index.save();
         databaseUpdate();
     }
 
@@ -312,31 +408,29 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
     }
 
     /**
-     * List all the files inside directories found inside the folder_route recursively
+     * Check if a file is one the node keeps for itself and must never be shared, like unfinished downloads,
+     * their journals and the hash index
+     *
+     * @param file the file
+     * @return True if the file must not be listed
+     */
+    private static boolean is_internal(File file) {
+        String name = file.getName();
+        return name.startsWith(".") && (name.endsWith(".part") || name.endsWith(".journal")
+                || name.startsWith(HashIndex.FILE_NAME));
+    }
+
+    /**
+     * List all the files inside a directory recursively, hashing them in parallel
      *
      * @param directory the File of the directory
+     * @param filter    the files and directories to include, null to include all
      * @return List of all contents in the directory, including inside other directories
      */
     private List<Content> check_inside(File directory, FileFilter filter) {
-        List<Content> contents = new LinkedList<>();
         if (filter == null) filter = file -> true;
-        for (File file : Objects.requireNonNull(directory.listFiles(filter))) {
-            if (file.isFile()) {
-                Content this_file = null;
-                try {
-                    this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(), HashCalculator.getFileHash(file), new ArrayList<>());
-                } catch (IOException e) {
-                    logger.severe("IOException while calculating hash");
-                } finally {
-                    assert this_file != null;
-                    this_file.setLocal_route(file.getAbsolutePath());
-                    contents.add(this_file);
-                }
-            } else {
-                contents.addAll(check_inside(file, null));
-            }
-        }
-        return contents;
+        FileFilter shared_filter = filter;
+        return indexer.scan(directory, file -> !is_internal(file) && shared_filter.accept(file));
     }
 
     /**
@@ -358,7 +452,7 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
             String[] tags = scanner.nextLine().split(",");
             Content this_file = null;
             try {
-                this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new LinkedList<>(Arrays.asList(descriptions)), HashCalculator.getFileHash(file), new LinkedList<>(Arrays.asList(tags)));
+                this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new LinkedList<>(Arrays.asList(descriptions)), hash_index.hash_of(file), new LinkedList<>(Arrays.asList(tags)));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -402,55 +496,450 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     @Override
     public ByteSlice get_slice(String hash, Integer slice_index) throws Exception {
-        Content to_download = null;
-        for (Content file : this.getContents()) {
-            if (file.getHash().equals(hash)) {
-                to_download = file;
+        VirtualChunk range = resolve(hash);
+        if (slice_index < 0 || slice_index >= range.getSlices()) {
+            throw new Exception("Slice out of range");
+        }
+        logger.info("Received new download thread");
+        String peer = client_host();
+        this.upload_slots.acquire(peer);
+        try {
+            ByteSlice slice = serve_slice(range, slice_index);
+            upload_limiter.acquire(peer, slice.getWire_size());
+            return slice;
+        } finally {
+            this.upload_slots.release(peer);
+            logger.info("Freed download thread");
+        }
+    }
+
+    /**
+     * Return a run of consecutive slices of a file in a single call, called remotely
+     *
+     * @param hash  the hash of the file
+     * @param from  the index of the first slice
+     * @param count the number of slices wanted, fewer are returned if the file ends before
+     * @return the slices, in order
+     * @throws Exception if something fails
+     */
+    @Override
+    public ByteSlice[] get_slices(String hash, Integer from, Integer count) throws Exception {
+        return serve_slices(hash, from, count, 0);
+    }
+
+    /**
+     * Return a run of consecutive slices of a file compressed where it saves space, called remotely
+     *
+     * @param hash   the hash of the file
+     * @param from   the index of the first slice
+     * @param count  the number of slices wanted, fewer are returned if the file ends before
+     * @param codecs the codecs the downloader accepts
+     * @return the slices, in order
+     * @throws Exception if something fails
+     */
+    @Override
+    public ByteSlice[] get_encoded_slices(String hash, Integer from, Integer count, Integer codecs) throws Exception {
+        return serve_slices(hash, from, count, codecs & SliceCodec.SUPPORTED_CODECS);
+    }
+
+    /**
+     * Get a run of consecutive slices of a file with an upload slot taken
+     *
+     * @param hash   the hash of the file
+     * @param from   the index of the first slice
+     * @param count  the number of slices wanted, fewer are returned if the file ends before
+     * @param codecs the codecs the slices may be compressed with, 0 to send them as they are
+     * @return the slices, in order
+     * @throws Exception if something fails
+     */
+    private ByteSlice[] serve_slices(String hash, int from, int count, int codecs) throws Exception {
+        VirtualChunk range = resolve(hash);
+        int slices_total = range.getSlices();
+        if (from < 0 || count < 1 || from >= slices_total) {
+            throw new Exception("Slices out of range");
+        }
+        logger.info("Received new batch download thread");
+        String peer = client_host();
+        this.upload_slots.acquire(peer);
+        try {
+            ByteSlice[] slices = new ByteSlice[Math.min(count, slices_total - from)];
+            for (int i = 0; i < slices.length; i++) {
+                ByteSlice slice = serve_slice(range, from + i);
+                slices[i] = codec.encode(range.getParent().getHash(), range.getFirst_slice() + from + i, slice, codecs);
+                if (slices[i] != slice) {
+                    // Sent compressed, the buffer of the pool the slice may have been copied to is not sent
+                    slice.release();
+                }
+                upload_limiter.acquire(peer, slices[i].getWire_size());
             }
+            return slices;
+        } finally {
+            this.upload_slots.release(peer);
+            logger.info("Freed download thread");
         }
-        if (to_download == null) {
-            throw new Exception("Hash not found");
+    }
+
+    /**
+     * Return the raw bytes of a range of a file, called remotely
+     *
+     * @param hash   the hash of the file
+     * @param offset the position of the first byte
+     * @param length the number of bytes wanted, fewer are returned if the file ends before
+     * @return the bytes of the range
+     * @throws Exception if something fails
+     */
+    @Override
+    public byte[] get_range(String hash, Long offset, Integer length) throws Exception {
+        VirtualChunk range = resolve(hash);
+        long file_length = range.getLength();
+        if (offset < 0 || length < 0 || offset > file_length || length > MAX_RANGE) {
+            throw new Exception("Range not valid");
         }
-        logger.info("Received new download thread");
-        this.upload_semaphore.acquire();
-        File file = new File(to_download.getLocal_route());
-        byte[] bytes;
-        synchronized (cache) {
-            if (cache.containsKey(hash) && cache.get(hash)[slice_index] != null) {
-                this.upload_semaphore.release();
-                logger.info("Freed download thread");
-                return cache.get(hash)[slice_index];
-            }
-        }
-        ByteSlice[] the_file = new ByteSlice[this.getSlicesNeeded(hash)];
-        try (FileInputStream stream = new FileInputStream(file)) {
-            for (int i = 0; i < this.getSlicesNeeded(hash); i++) {
-                bytes = new byte[slice_size];
-                int j;
-                for (j = 0; j < slice_size; j++) {
-                    int the_byte = stream.read();
-                    if (the_byte >= 0) {
-                        bytes[j] = (byte) the_byte;
-                    } else {
-                        break;
+        byte[] bytes = new byte[(int) Math.min(length, file_length - offset)];
+        String peer = client_host();
+        this.upload_slots.acquire(peer);
+        try {
+            int copied = 0;
+            while (copied < bytes.length) {
+                long position = offset + copied;
+                ByteSlice slice = serve_slice(range, (int) (position / slice_size));
+                try {
+                    int start = (int) (position % slice_size);
+                    int amount = Math.min(bytes.length - copied, slice.getBytes_written() - start);
+                    if (amount <= 0) {
+                        // The file on disk is shorter than the range, it was truncated or replaced
+                        throw new Exception("The file ends before the range");
                     }
+                    System.arraycopy(slice.getBytes(), start, bytes, copied, amount);
+                    copied += amount;
+                } finally {
+                    slice.release();
+                }
+            }
+            upload_limiter.acquire(peer, bytes.length);
+            return bytes;
+        } finally {
+            this.upload_slots.release(peer);
+        }
+    }
+
+    /**
+     * Return the port of the data plane, called remotely
+     *
+     * @return the port, or null if the data plane is not running
+     */
+    @Override
+    public Integer get_data_port() {
+        return data_server == null ? null : data_server.getPort();
+    }
+
+    /**
+     * Make the files of this node among some new contents available to serve
+     *
+     * @param files the contents just merged into contents
+     */
+    private void share(List<Content> files) {
+        for (Content file : files) {
+            if (file.getLocal_route() != null) {
+                shared.putIfAbsent(file.getHash(), file);
+            }
+        }
+    }
+
+    /**
+     * Find a shared file or chunk without updating the contents, used for every request of slices
+     *
+     * @param hash the hash of the file or the chunk
+     * @return the range of the file to serve, or null if it is not shared
+     */
+    VirtualChunk find_shared(String hash) {
+        Content file = shared.get(hash);
+        if (file != null) {
+            return VirtualChunk.whole(file, slice_size);
+        }
+        return chunks.get(hash);
+    }
+
+    /**
+     * Find the range of a shared file that a hash refers to, the whole file or one of its chunks
+     *
+     * @param hash the hash of the file or the chunk
+     * @return the range to serve
+     * @throws Exception if the hash is not shared
+     */
+    private VirtualChunk resolve(String hash) throws Exception {
+        VirtualChunk range = find_shared(hash);
+        if (range == null) {
+            throw new Exception("Hash not found");
+        }
+        return range;
+    }
+
+    /**
+     * Get the chunks of a large shared file, hashing them the first time they are asked for
+     *
+     * @param content the shared file
+     * @return the chunks, in order
+     * @throws Exception if reading the file fails
+     */
+    private List<VirtualChunk> chunks_of(Content content) throws Exception {
+        List<VirtualChunk> list = file_chunks.get(content.getHash());
+        if (list != null) {
+            return list;
+        }
+        String peer = client_host();
+        this.upload_slots.acquire(peer);
+        try {
+            list = VirtualChunk.split(content, slice_size);
+        } finally {
+            this.upload_slots.release(peer);
+        }
+        List<VirtualChunk> previous = file_chunks.putIfAbsent(content.getHash(), list);
+        if (previous != null) {
+            return previous;
+        }
+        for (VirtualChunk chunk : list) {
+            chunks.put(chunk.getHash(), chunk);
+        }
+        return list;
+    }
+
+    /**
+     * Return the Merkle tree of the slices of a file, called remotely
+     * The tree is computed once per file, reading it slice by slice, and kept for the next downloaders
+     *
+     * @param hash the hash of the file
+     * @return the Merkle tree of the file
+     * @throws Exception if the hash is not found or reading the file fails
+     */
+    @Override
+    public MerkleTree get_merkle_tree(String hash) throws Exception {
+        MerkleTree tree = merkle_trees.get(hash);
+        if (tree != null) {
+            return tree;
+        }
+        VirtualChunk range = resolve(hash);
+        if (!range.is_whole() && find_shared(range.getParent().getHash()) != null) {
+            // The slices of a chunk are slices of the whole file, so are their leaves
+            tree = get_merkle_tree(range.getParent().getHash()).subtree(range.getFirst_slice(), range.getSlices());
+        } else {
+            // A whole file, or a chunk of a file still being assembled, whose other slices may not be there yet
+            String peer = client_host();
+            this.upload_slots.acquire(peer);
+            try {
+                tree = build_merkle_tree(range);
+            } finally {
+                this.upload_slots.release(peer);
+            }
+        }
+        MerkleTree previous = merkle_trees.putIfAbsent(hash, tree);
+        return previous != null ? previous : tree;
+    }
+
+    /**
+     * Hash every slice of a file or chunk to build its Merkle tree
+     * Only the bytes of the range are read, the .part file a chunk is assembled in is longer than the file
+     *
+     * @param range the file or chunk
+     * @return the Merkle tree of the range
+     * @throws IOException if reading the file fails
+     */
+    private MerkleTree build_merkle_tree(VirtualChunk range) throws IOException {
+        File file = new File(range.getParent().getLocal_route());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[][] leaves = new byte[range.getSlices()][];
+            ByteBuffer buffer = ByteBuffer.allocate(slice_size);
+            MessageDigest digest = MerkleTree.new_digest();
+            long end = range.getOffset() + range.getLength();
+            for (int i = 0; i < leaves.length; i++) {
+                long position = (long) (range.getFirst_slice() + i) * slice_size;
+                buffer.clear();
+                buffer.limit((int) Math.min(slice_size, Math.max(0, end - position)));
+                int read = 0;
+                while (buffer.hasRemaining() && read >= 0) {
+                    read = channel.read(buffer, position + buffer.position());
                 }
-                the_file[i] = new ByteSlice(bytes, j);
+                digest.update(buffer.array(), 0, buffer.position());
+                leaves[i] = digest.digest();
             }
+            return new MerkleTree(leaves);
+        }
+    }
+
+    /**
+     * Get a slice of a shared file, from the cache or from the disk, with an upload slot already taken
+     *
+     * @param range       The file or chunk the slice belongs to
+     * @param slice_index The index of the slice in the range
+     * @return The slice
+     * @throws Exception If reading fails
+     */
+    private ByteSlice serve_slice(VirtualChunk range, int slice_index) throws Exception {
+        // Chunks are served as the slices of their whole file, so both share the cache and the open channels
+        Content to_download = range.getParent();
+        String hash = to_download.getHash();
+        slice_index += range.getFirst_slice();
+        // The .part file a chunk is shared from while it is assembled is longer than the file
+        int length = (int) Math.max(0, Math.min(slice_size,
+                range.getOffset() + range.getLength() - (long) slice_index * slice_size));
+        if (mapped_serving) {
+            return slice_reader.read_slice(hash, to_download.getLocal_route(), slice_index).truncated(length);
         }
-        synchronized (cache) {
-            if (cache.size() >= 4) {
-                logger.info("Removing file from cache");
-                cache.remove((String) cache.keySet().toArray()[0]);
+        ByteSlice slice = cache.get(hash, slice_index);
+        boolean hit = slice != null;
+        if (!hit) {
+            slice = load_slice(hash, to_download.getLocal_route(), slice_index, false);
+        }
+        // Reading ahead stops at the end of the range, the rest of a .part file may not be written yet
+        int range_end = range.getFirst_slice() + range.getSlices();
+        prefetcher.on_request(client_host(), hash, to_download.getLocal_route(), slice_index, range_end, hit);
+        return slice.truncated(length);
+    }
+
+    /**
+     * Read a slice that is not in the cache and add it to the cache
+     * If another thread is already reading the same slice, wait for its result instead of reading it again
+     *
+     * @param hash        The hash of the file
+     * @param route       The local route of the file
+     * @param slice_index The index of the slice
+     * @param speculative True if the slice is being read ahead, before it has been requested
+     * @return The slice
+     * @throws Exception If reading fails, in this thread or in the one that was already reading
+     */
+    private ByteSlice load_slice(String hash, String route, int slice_index, boolean speculative) throws Exception {
+        String key = hash + ":" + slice_index;
+        CompletableFuture<ByteSlice> load = new CompletableFuture<>();
+        CompletableFuture<ByteSlice> in_flight = loading.putIfAbsent(key, load);
+        if (in_flight != null) {
+            logger.info("Waiting for a load already in flight");
+            try {
+                return in_flight.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
             }
-            if (!cache.containsKey(hash)) {
-                logger.info("Adding file to cache");
-                cache.put(hash, the_file);
+        }
+        try {
+            ByteSlice slice = slice_reader.read_slice(hash, route, slice_index);
+            cache.put(hash, slice_index, slice, speculative);
+            load.complete(slice);
+            return slice;
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Get the host of the peer that made the remote call being served by this thread
+     *
+     * @return The host, or "local" if the call is not a remote one
+     */
+    private String client_host() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
+    }
+
+    /**
+     * Add a downloaded file to the contents with its known hash, without hashing it again
+     * It was hashed, or assembled with its CRC computed, once it was downloaded
+     *
+     * @param hash the hash of the file
+     * @param file the downloaded file
+     */
+    public void add_verified_file(String hash, File file) {
+        Content this_file = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(), hash, new ArrayList<>());
+        this_file.setLocal_route(file.getAbsolutePath());
+        forget_slices(hash);
+        merge_lists(contents, new LinkedList<>(Collections.singleton(this_file)));
+        share(Collections.singletonList(this_file));
+        hash_index.put(file, hash);
+        hash_index.save();
+    }
+
+    /**
+     * Share the chunks of a file that have been downloaded and verified, served from their ranges of the file
+     * Chunks are shared while the rest of the file is still being downloaded, and once it is complete they are
+     * kept as the chunks of the file, so they are not hashed again when a downloader asks for them
+     *
+     * @param parent      the file the chunks are written in, with the hash of the whole file once it is complete
+     * @param file_name   the name of the whole file
+     * @param hashes      the hashes of every chunk of the file, in order
+     * @param written     the chunks that have been written
+     * @param file_length the size of the file, or an upper bound if its last chunk has not been written
+     */
+    public void add_verified_chunks(Content parent, String file_name, List<String> hashes, BitSet written,
+                                    long file_length) {
+        forget_slices(parent.getHash());
+        List<VirtualChunk> list = new ArrayList<>();
+        for (int i = written.nextSetBit(0); i >= 0; i = written.nextSetBit(i + 1)) {
+            VirtualChunk chunk = VirtualChunk.of(parent, file_name, i, hashes.get(i), file_length, hashes.size(),
+                    slice_size);
+            chunks.put(chunk.getHash(), chunk);
+            list.add(chunk);
+        }
+        if (list.size() == hashes.size()) {
+            file_chunks.put(parent.getHash(), list);
+        }
+    }
+
+    /**
+     * Drop the slices of a file kept to serve it, from the cache, the compressed slices and the open files
+     * The file under the hash has changed, like a .part file whose chunks are being written or that was moved
+     *
+     * @param hash the hash of the file
+     */
+    private void forget_slices(String hash) {
+        cache.invalidate(hash);
+        codec.invalidate(hash);
+        slice_reader.forget(hash);
+    }
+
+    /**
+     * Get the progress of the listing of the shared folder
+     *
+     * @return a string with the files and bytes hashed, or "idle"
+     */
+    public String get_index_progress() {
+        return indexer.get_progress();
+    }
+
+    /**
+     * Get the counters of the upload cache
+     *
+     * @return a string with the usage, hits, misses and evictions of the cache
+     */
+    public String get_cache_stats() {
+        if (mapped_serving) {
+            return "memory mapped";
+        }
+        return cache.get_stats();
+    }
+
+    /**
+     * Tell which of the given files this node holds, called remotely
+     *
+     * @param hashes The hashes of the files
+     * @return A bit for every hash, set if the file or chunk is shared by this node
+     * @throws Exception If something fails
+     */
+    @Override
+    public BitSet get_availability(List<String> hashes) throws Exception {
+        BitSet availability = new BitSet(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            if (shared.containsKey(hashes.get(i)) || chunks.containsKey(hashes.get(i))) {
+                availability.set(i);
             }
-            this.upload_semaphore.release();
-            logger.info("Freed download thread");
-            return cache.get(hash)[slice_index];
         }
+        return availability;
     }
 
     /**
@@ -484,9 +973,13 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     @Override
     public String get_filename(String hash, List<String> names) throws Exception {
+        VirtualChunk chunk = chunks.get(hash);
+        if (chunk != null) {
+            return chunk.getName();
+        }
         for (String name : names) {
             for (File f : Objects.requireNonNull(new File(this.folder_route).listFiles(fi -> fi.getName().endsWith(name)))) {
-                if (hash.equals(HashCalculator.getFileHash(f))) {
+                if (hash.equals(hash_index.hash_of(f))) {
                     return f.getName();
                 }
             }
@@ -503,22 +996,12 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     @Override
     public Integer getSlicesNeeded(String hash) throws Exception {
-        Content to_download = null;
-        for (Content file : this.getContents()) {
-            if (file.getHash().equals(hash)) {
-                to_download = file;
-            }
-        }
-        if (to_download == null) {
-            throw new Exception("Hash not found");
-        }
-        File file = new File(to_download.getLocal_route());
-        return ((int) Math.ceil(file.length() / (float) slice_size));
+        return resolve(hash).getSlices();
     }
 
     /**
      * When downloading a file, this confirms the downloader if the file is whole or if it will be downloaded by chunks
-     * If separating in chunks is necessary, it is done and all hashes returned
+     * Chunks are ranges of the file hashed once and kept, they are served from the file itself without being written
      *
      * @param hash The hash of the whole file
      * @return Hashes needed to download the whole file
@@ -526,30 +1009,13 @@ public class ContentManager extends UnicastRemoteObject implements Remote, Manag
      */
     @Override
     public List<String> getHashesNeeded(String hash) throws Exception {
-        Content to_download = null;
-        for (Content file : this.getContents()) {
-            if (file.getHash().equals(hash)) {
-                to_download = file;
-            }
-        }
-        if (to_download == null) {
-            throw new Exception("Hash not found");
-        }
-        File file = new File(to_download.getLocal_route());
-        String name = file.getName();
-        if ((file.length() / slice_size) > 25) {
-            FileSlicer.splitFile(file);
-        } else {
+        VirtualChunk range = resolve(hash);
+        if (!range.is_whole() || !VirtualChunk.is_chunked(range.getLength(), slice_size)) {
             return new LinkedList<>(Collections.singleton(hash));
         }
         List<String> hashes = new LinkedList<>();
-        this.list_filtered_files("name:" + name);
-        for (File f : Objects.requireNonNull(new File(this.folder_route).listFiles(fi -> fi.getName().contains(name) && !fi.getName().startsWith(name)))) {
-            for (Content elem : this.getContents()) {
-                if (elem.getFilenames().contains(f.getName())) {
-                    hashes.add(elem.getHash());
-                }
-            }
+        for (VirtualChunk chunk : chunks_of(range.getParent())) {
+            hashes.add(chunk.getHash());
         }
         return hashes;
     }
@@ -0,0 +1,207 @@
+package peer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Client of the data plane of a seeder, see DataServer
+ * Connections are kept open and reused between requests, one request at a time per connection
+ * Connecting and every read are bounded by a timeout, and a seeder whose data plane fails is asked through RMI for
+ * a while before its data plane is tried again
+ */
+public class DataClient {
+    /**
+     * Milliseconds to wait for a connection to the data plane
+     */
+    static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("duchnet.data.connect.ms", 3000);
+    /**
+     * Milliseconds to wait for every read of an answer
+     */
+    static final int READ_TIMEOUT_MILLIS = Integer.getInteger("duchnet.data.read.ms", 30000);
+    /**
+     * Milliseconds a seeder whose data plane failed is asked through RMI
+     */
+    static final long BACKOFF_MILLIS = Long.getLong("duchnet.data.backoff.ms", 60000L);
+    /**
+     * Clients of the seeders that have a data plane
+     */
+    private static final ConcurrentHashMap<Manager, DataClient> clients = new ConcurrentHashMap<>();
+    /**
+     * Seeders without a data plane, always asked through RMI
+     */
+    private static final Set<Manager> unavailable = ConcurrentHashMap.newKeySet();
+    private final InetSocketAddress address;
+    /**
+     * Open connections that are not being used
+     */
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+    /**
+     * Time in nanoseconds until which the data plane is not used, after a connection or a read failed
+     */
+    private volatile long backoff_until;
+
+    private DataClient(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Get the data plane client of a seeder, asking the seeder for its data port the first time
+     *
+     * @param seed_manager The manager of the seeder
+     * @param host         The host of the seeder, null if unknown
+     * @return The client, or null if the seeder has no data plane, or it failed recently, and has to be asked through
+     * RMI
+     */
+    public static DataClient of(Manager seed_manager, String host) {
+        DataClient client = clients.get(seed_manager);
+        if (client != null) {
+            return System.nanoTime() - client.backoff_until < 0 ? null : client;
+        }
+        if (host == null || unavailable.contains(seed_manager)) {
+            return null;
+        }
+        Integer port = null;
+        try {
+            port = seed_manager.get_data_port();
+        } catch (Exception e) {
+            PeerImp.logger.info("A seeder could not send its data port");
+        }
+        if (port == null) {
+            unavailable.add(seed_manager);
+            return null;
+        }
+        client = new DataClient(new InetSocketAddress(host, port));
+        DataClient previous = clients.putIfAbsent(seed_manager, client);
+        return previous != null ? previous : client;
+    }
+
+    /**
+     * Download a run of consecutive slices of a file
+     *
+     * @param hash  the hash of the file
+     * @param from  the index of the first slice
+     * @param count the number of slices wanted, fewer are returned if the file ends before
+     * @return the slices, in order
+     * @throws IOException if the connection fails or times out, or the seeder can't send the slices
+     */
+    public ByteSlice[] get_slices(String hash, int from, int count) throws IOException {
+        Connection connection = idle.poll();
+        boolean reusable = false;
+        try {
+            if (connection == null) {
+                connection = connect();
+            }
+            SocketChannel channel = connection.channel;
+            ReadableByteChannel input = connection.input;
+            byte[] hash_bytes = hash.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer request = ByteBuffer.allocate(4 + 4 + 1 + 2 + hash_bytes.length + 8);
+            request.putInt(request.capacity() - 4);
+            request.putInt(DataServer.MAGIC);
+            request.put(DataServer.OP_SLICES);
+            request.putShort((short) hash_bytes.length);
+            request.put(hash_bytes);
+            request.putInt(from);
+            request.putInt(count);
+            request.flip();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            byte status = read(input, 1).get();
+            if (status == DataServer.STATUS_BUSY) {
+                reusable = true;
+                throw new IOException("Seeder busy");
+            }
+            if (status == DataServer.STATUS_ERROR) {
+                ByteBuffer message = read(input, read(input, 2).getShort());
+                reusable = true;
+                throw new IOException(new String(message.array(), StandardCharsets.UTF_8));
+            }
+            int slices = read(input, 4).getInt();
+            if (slices < 0 || slices > DataServer.MAX_SLICES) {
+                throw new IOException("Invalid response");
+            }
+            ByteBuffer lengths = read(input, 4 * slices);
+            ByteSlice[] results = new ByteSlice[slices];
+            for (int i = 0; i < slices; i++) {
+                results[i] = ByteSlice.receive(input, lengths.getInt());
+            }
+            reusable = true;
+            return results;
+        } finally {
+            if (reusable) {
+                idle.add(connection);
+            } else {
+                backoff_until = System.nanoTime() + BACKOFF_MILLIS * 1000000;
+                if (connection != null) {
+                    connection.channel.close();
+                }
+                Connection stale;
+                while ((stale = idle.poll()) != null) {
+                    stale.channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a connection to the data plane, waiting at most CONNECT_TIMEOUT_MILLIS
+     * The answers are read through the socket, so every read waits at most READ_TIMEOUT_MILLIS
+     *
+     * @return The connection
+     * @throws IOException If connecting fails or times out
+     */
+    private Connection connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            channel.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+            return new Connection(channel, Channels.newChannel(channel.socket().getInputStream()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read an exact number of bytes from a connection
+     *
+     * @param channel The connection
+     * @param length  The number of bytes
+     * @return A buffer with the bytes, ready to be read
+     * @throws IOException If the connection fails, times out or ends before
+     */
+    private static ByteBuffer read(ReadableByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Data plane connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A connection to the data plane, written through its channel and read through its socket, which has a timeout
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final ReadableByteChannel input;
+
+        Connection(SocketChannel channel, ReadableByteChannel input) {
+            this.channel = channel;
+            this.input = input;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Non-blocking TCP server that sends runs of slices straight from the shared files, the data plane
+ * RMI stays the control plane, this server only moves bytes: a single thread multiplexes all the connections
+ * with a Selector and the slices go from the file to the socket with FileChannel.transferTo, without
+ * being copied into the heap or serialized
+ * <p>
+ * Request: int length of the rest, int MAGIC, byte OP_SLICES, short length and UTF-8 bytes of the hash,
+ * int first slice, int number of slices
+ * Response: byte STATUS_OK, int number of slices, int length of every slice, and the bytes of all the slices,
+ * or byte STATUS_ERROR, short length and UTF-8 bytes of the message, or byte STATUS_BUSY
+ */
+public class DataServer implements Runnable {
+    /**
+     * First bytes of every request, "DCDP"
+     */
+    static final int MAGIC = 0x44434450;
+    /**
+     * Operation asking for a run of slices
+     */
+    static final byte OP_SLICES = 1;
+    /**
+     * The slices follow
+     */
+    static final byte STATUS_OK = 0;
+    /**
+     * The request failed, a message follows
+     */
+    static final byte STATUS_ERROR = 1;
+    /**
+     * No upload slot is free, the request has to be made through RMI
+     */
+    static final byte STATUS_BUSY = 2;
+    /**
+     * Maximum bytes of a request
+     */
+    static final int MAX_REQUEST = 4096;
+    /**
+     * Maximum number of slices sent in a response
+     */
+    static final int MAX_SLICES = 64;
+    /**
+     * Maximum bytes sent with a single transferTo, so the upload limits are applied in small steps
+     */
+    static final int TRANSFER_CHUNK = 256 * 1024;
+    /**
+     * Milliseconds a connection over its upload limit waits before trying to send again
+     */
+    static final int THROTTLE_MILLIS = 10;
+    private final ContentManager manager;
+    /**
+     * Upload slots shared with the RMI uploads, a slot is held while a response is being sent
+     */
+    private final UploadSlots upload_slots;
+    /**
+     * Limits shared with the RMI uploads
+     */
+    private final UploadLimiter upload_limiter;
+    /**
+     * Connections waiting for their upload limit to let them send again
+     */
+    private final List<SelectionKey> throttled = new ArrayList<>();
+    /**
+     * Open channels of the files being served
+     */
+    private final ChannelPool channel_pool;
+    private final int slice_size;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final int port;
+
+    private DataServer(ContentManager manager, UploadSlots upload_slots, UploadLimiter upload_limiter, int slice_size,
+                       ServerSocketChannel server, Selector selector, int port) {
+        this.manager = manager;
+        this.upload_slots = upload_slots;
+        this.upload_limiter = upload_limiter;
+        this.channel_pool = new ChannelPool(Integer.getInteger("duchnet.channels", 16));
+        this.slice_size = slice_size;
+        this.server = server;
+        this.selector = selector;
+        this.port = port;
+    }
+
+    /**
+     * Open the data plane and start the thread that serves it
+     *
+     * @param manager          The manager of the shared files
+     * @param upload_slots     Upload slots shared among the downloaders
+     * @param upload_limiter   Limits of the upload bandwidth
+     * @param slice_size       The size of a slice in bytes
+     * @param port             The port to listen on, 0 for any free port
+     * @return The started server
+     * @throws IOException If the port can't be opened
+     */
+    public static DataServer start(ContentManager manager, UploadSlots upload_slots, UploadLimiter upload_limiter,
+                                   int slice_size, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        Selector selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        DataServer data_server = new DataServer(manager, upload_slots, upload_limiter, slice_size, server, selector,
+                ((InetSocketAddress) server.getLocalAddress()).getPort());
+        Thread thread = new Thread(data_server, "data-plane");
+        thread.setDaemon(true);
+        thread.start();
+        return data_server;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Serve the connections until the node stops
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(throttled.isEmpty() ? 0 : THROTTLE_MILLIS);
+            } catch (IOException e) {
+                PeerImp.logger.severe("Data plane stopped: " + e.getMessage());
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                } catch (IOException e) {
+                    PeerImp.logger.info("Data plane connection closed: " + e.getMessage());
+                    close(key);
+                } catch (RuntimeException e) {
+                    // A bug, not a broken connection, but it must not stop the data plane of the node
+                    PeerImp.logger.severe("Unexpected error in the data plane: " + e);
+                    close(key);
+                }
+            }
+            for (SelectionKey key : throttled) {
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            throttled.clear();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ,
+                new Connection(((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress()));
+    }
+
+    /**
+     * Read the bytes of a request and answer it once it is whole
+     *
+     * @param key The key of the connection
+     * @throws IOException If the connection fails or the request is not valid
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.request) < 0) {
+            close(key);
+            return;
+        }
+        ByteBuffer request = connection.request;
+        if (request.position() < 4) {
+            return;
+        }
+        int length = request.getInt(0);
+        if (length < 4 + 1 + 2 || length > MAX_REQUEST - 4) {
+            throw new IOException("Request length not valid");
+        }
+        if (request.position() < 4 + length) {
+            return;
+        }
+        request.flip();
+        request.getInt();
+        if (request.getInt() != MAGIC || request.get() != OP_SLICES) {
+            throw new IOException("Unknown request");
+        }
+        short hash_length = request.getShort();
+        if (hash_length < 0 || request.remaining() < hash_length + 8) {
+            throw new IOException("Request not valid");
+        }
+        byte[] hash_bytes = new byte[hash_length];
+        request.get(hash_bytes);
+        String hash = new String(hash_bytes, StandardCharsets.UTF_8);
+        int from = request.getInt();
+        int count = request.getInt();
+        request.clear();
+        respond(key, connection, hash, from, count);
+    }
+
+    /**
+     * Prepare the response to a request and start sending it
+     *
+     * @param key        The key of the connection
+     * @param connection The state of the connection
+     * @param hash       The hash of the file or the chunk
+     * @param from       The index of the first slice
+     * @param count      The number of slices
+     * @throws IOException If the file can't be opened
+     */
+    private void respond(SelectionKey key, Connection connection, String hash, int from, int count) throws IOException {
+        VirtualChunk range = manager.find_shared(hash);
+        if (range == null) {
+            send_status(key, connection, error("Hash not found"));
+            return;
+        }
+        if (!upload_slots.try_acquire(connection.peer)) {
+            send_status(key, connection, ByteBuffer.wrap(new byte[]{STATUS_BUSY}));
+            return;
+        }
+        ChannelPool.PooledChannel pooled;
+        try {
+            pooled = channel_pool.acquire(range.getParent().getHash(), range.getParent().getLocal_route());
+        } catch (IOException e) {
+            upload_slots.release(connection.peer);
+            send_status(key, connection, error("File not readable"));
+            return;
+        }
+        // Chunks are ranges of their whole file, sent from it directly
+        long file_length = Math.min(pooled.getChannel().size(), range.getOffset() + range.getLength());
+        long position = range.getOffset() + (long) from * slice_size;
+        if (from < 0 || count < 1 || count > MAX_SLICES || position >= file_length) {
+            channel_pool.release(pooled);
+            upload_slots.release(connection.peer);
+            send_status(key, connection, error("Slices out of range"));
+            return;
+        }
+        long end = Math.min(file_length, position + (long) count * slice_size);
+        int slices = (int) ((end - position + slice_size - 1) / slice_size);
+        ByteBuffer header = ByteBuffer.allocate(5 + 4 * slices);
+        header.put(STATUS_OK);
+        header.putInt(slices);
+        for (int i = 0; i < slices; i++) {
+            long start = position + (long) i * slice_size;
+            header.putInt((int) (Math.min(end, start + slice_size) - start));
+        }
+        header.flip();
+        connection.header = header;
+        connection.file = pooled;
+        connection.position = position;
+        connection.remaining = end - position;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private ByteBuffer error(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + bytes.length);
+        buffer.put(STATUS_ERROR);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void send_status(SelectionKey key, Connection connection, ByteBuffer status) {
+        connection.header = status;
+        connection.remaining = 0;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Send as much of the response as the socket takes, the header first and then the slices from the file
+     *
+     * @param key The key of the connection
+     * @throws IOException If the connection fails
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (connection.header.hasRemaining()) {
+            channel.write(connection.header);
+            if (connection.header.hasRemaining()) {
+                return;
+            }
+        }
+        while (connection.remaining > 0) {
+            long granted = upload_limiter.take(connection.peer, Math.min(connection.remaining, TRANSFER_CHUNK));
+            if (granted == 0) {
+                // Over the upload limit, stop writing until the buckets have refilled
+                key.interestOps(0);
+                throttled.add(key);
+                return;
+            }
+            long sent = connection.file.getChannel().transferTo(connection.position, granted, channel);
+            upload_limiter.settle(connection.peer, granted, sent);
+            if (sent == 0) {
+                if (connection.position >= connection.file.getChannel().size()) {
+                    throw new IOException("File shrank while being sent");
+                }
+                // The socket buffer is full, wait until it can take more
+                return;
+            }
+            connection.position += sent;
+            connection.remaining -= sent;
+        }
+        finish(connection);
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Give back the file and the upload slot of the response being sent, if any
+     *
+     * @param connection The state of the connection
+     */
+    private void finish(Connection connection) {
+        if (connection.file != null) {
+            channel_pool.release(connection.file);
+            connection.file = null;
+            upload_slots.release(connection.peer);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection) {
+            finish((Connection) key.attachment());
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            PeerImp.logger.info("IOException while closing a data plane connection");
+        }
+    }
+
+    /**
+     * State of a connection: the request being read or the response being sent
+     */
+    private static class Connection {
+        /**
+         * Host of the downloader
+         */
+        final String peer;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+        ByteBuffer header;
+        ChannelPool.PooledChannel file;
+        long position;
+        long remaining;
+
+        Connection(String peer) {
+            this.peer = peer;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package peer;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lists the shared folder and hashes its files in parallel
+ * Every directory is a fork-join task that forks a task for every subdirectory and every file, so a large share
+ * is read by all the workers at once; the files already in the hash index are not read at all
+ * While a scan runs its progress is logged every few seconds, and can be asked for with get_progress()
+ */
+public class FolderIndexer {
+    /**
+     * Milliseconds between two progress reports
+     */
+    static final long REPORT_MILLIS = 5000;
+    private final HashIndex hash_index;
+    private final ForkJoinPool pool;
+    private final AtomicInteger files_found = new AtomicInteger();
+    private final AtomicInteger files_done = new AtomicInteger();
+    private final AtomicLong bytes_found = new AtomicLong();
+    private final AtomicLong bytes_done = new AtomicLong();
+    /**
+     * True while a scan is running
+     */
+    private volatile boolean scanning;
+
+    /**
+     * Constructor for FolderIndexer
+     *
+     * @param hash_index The index consulted before hashing a file
+     * @param threads    Number of files hashed at the same time
+     */
+    public FolderIndexer(HashIndex hash_index, int threads) {
+        this.hash_index = hash_index;
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    /**
+     * List every file under a directory that passes a filter, with its hash
+     * Scans are made one at a time, the second one finds the hashes of the first in the index
+     *
+     * @param directory The directory
+     * @param filter    The files and directories to include
+     * @return A content for every file, with its local route
+     */
+    public synchronized List<Content> scan(File directory, FileFilter filter) {
+        files_found.set(0);
+        files_done.set(0);
+        bytes_found.set(0);
+        bytes_done.set(0);
+        scanning = true;
+        Thread reporter = new Thread(() -> {
+            try {
+                while (scanning) {
+                    Thread.sleep(REPORT_MILLIS);
+                    PeerImp.logger.warning("Indexing " + get_progress());
+                }
+            } catch (InterruptedException e) {
+                // The scan is over
+            }
+        }, "index-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+        try {
+            return pool.invoke(new DirectoryTask(directory, filter));
+        } finally {
+            scanning = false;
+            reporter.interrupt();
+        }
+    }
+
+    /**
+     * Get the progress of the scan running
+     *
+     * @return a string with the files and bytes hashed out of the ones found so far, or "idle"
+     */
+    public String get_progress() {
+        if (!scanning) {
+            return "idle";
+        }
+        return String.format("%d/%d files, %.1f/%.1f MB", files_done.get(), files_found.get(),
+                bytes_done.get() / (1024.0 * 1024), bytes_found.get() / (1024.0 * 1024));
+    }
+
+    /**
+     * Task listing a directory, it forks one task for every file and subdirectory and joins them in order
+     */
+    private class DirectoryTask extends RecursiveTask<List<Content>> {
+        private final File directory;
+        private final FileFilter filter;
+
+        DirectoryTask(File directory, FileFilter filter) {
+            this.directory = directory;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<Content> compute() {
+            File[] files = directory.listFiles(filter);
+            if (files == null) {
+                PeerImp.logger.warning("Could not list " + directory);
+                return new LinkedList<>();
+            }
+            List<RecursiveTask<List<Content>>> tasks = new ArrayList<>(files.length);
+            for (File file : files) {
+                if (file.isFile()) {
+                    files_found.incrementAndGet();
+                    bytes_found.addAndGet(file.length());
+                    tasks.add(new FileTask(file));
+                } else if (file.isDirectory()) {
+                    tasks.add(new DirectoryTask(file, filter));
+                }
+            }
+            for (RecursiveTask<List<Content>> task : tasks) {
+                task.fork();
+            }
+            List<Content> contents = new LinkedList<>();
+            for (RecursiveTask<List<Content>> task : tasks) {
+                contents.addAll(task.join());
+            }
+            return contents;
+        }
+    }
+
+    /**
+     * Task hashing a single file
+     */
+    private class FileTask extends RecursiveTask<List<Content>> {
+        private final File file;
+
+        FileTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected List<Content> compute() {
+            try {
+                Content content = new Content(new ArrayList<>(Collections.singleton(file.getName())), new ArrayList<>(),
+                        hash_index.hash_of(file), new ArrayList<>());
+                content.setLocal_route(file.getAbsolutePath());
+                return new LinkedList<>(Collections.singleton(content));
+            } catch (IOException e) {
+                PeerImp.logger.severe("IOException while calculating the hash of " + file.getName());
+                return new LinkedList<>();
+            } finally {
+                files_done.incrementAndGet();
+                bytes_done.addAndGet(file.length());
+            }
+        }
+    }
+}
@@ -1,15 +1,25 @@
 package peer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 
 /**
  * Used to calculate CRC32 hash of a file
  */
 public class HashCalculator {
+    /**
+     * Size of the buffer every thread reads files with, 4 MB by default
+     */
+    private static final int BUFFER_SIZE = Integer.getInteger("duchnet.hash.buffer.kb", 4096) * 1024;
+    /**
+     * Buffer of every thread, reused for every file it hashes
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
     /**
      * Get the hash of a file
      *
@@ -21,12 +31,42 @@ public class HashCalculator {
         if (file.length() / (1000 * 1000) > 100) {
             System.out.println("WARNING: " + file.getName() + " is larger than 100MB, hash might be slow");
         }
-        FileInputStream fis = new FileInputStream(file);
-        CheckedInputStream checkedInputStream = new CheckedInputStream(fis, new CRC32());
-        byte[] buffer = new byte[1000 * 1000];
-        while (checkedInputStream.read(buffer, 0, buffer.length) >= 0) {
-            assert true;
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Get the hash of a range of an open file, like a file being downloaded
+     *
+     * @param channel the channel of the file
+     * @param offset  the position of the first byte
+     * @param length  the number of bytes
+     * @return CRC32 hash of the range
+     * @throws IOException if reading fails or the file ends before the range
+     */
+    public static String getRangeHash(FileChannel channel, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = buffers.get();
+        for (long hashed = 0; hashed < length; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - hashed));
+            int read = channel.read(buffer, offset + hashed);
+            if (read < 0) {
+                throw new IOException("The file ends before the range to hash");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            hashed += read;
         }
-        return Long.toHexString(checkedInputStream.getChecksum().getValue());
+        return Long.toHexString(crc.getValue());
     }
 }
@@ -0,0 +1,190 @@
+package peer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Hashes of the shared files kept in a hidden file of the shared folder, so listing the folder only hashes the
+ * files that are new or have changed since they were hashed
+ * A file is known by its canonical path, and its hash is reused while its size, modification time and file key
+ * (the inode where the file system has one) are the same as when it was hashed
+ */
+public class HashIndex {
+    /**
+     * First bytes of the index, "DCH1"
+     */
+    private static final int MAGIC = 0x44434831;
+    /**
+     * Name of the index in the shared folder
+     */
+    public static final String FILE_NAME = ".duchnet.index";
+    /**
+     * The file of the index
+     */
+    private final Path path;
+    /**
+     * Known hashes, by canonical path
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /**
+     * True if entries changed since the index was last saved
+     */
+    private boolean dirty;
+
+    private HashIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Open the index of a shared folder, starting an empty one if there is none or it can't be read
+     *
+     * @param folder_route The route of the shared folder
+     * @return The index
+     */
+    public static HashIndex open(String folder_route) {
+        HashIndex index = new HashIndex(new File(folder_route, FILE_NAME).toPath());
+        if (Files.exists(index.path)) {
+            try {
+                index.read();
+            } catch (IOException e) {
+                PeerImp.logger.warning("Hash index " + index.path + " is not valid, the files will be hashed again");
+                index.entries.clear();
+            }
+        }
+        return index;
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a hash index");
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String route = input.readUTF();
+                entries.put(route, new Entry(input.readLong(), input.readLong(), input.readUTF(), input.readUTF()));
+            }
+        }
+    }
+
+    /**
+     * Get the hash of a file, from the index if the file has not changed since it was hashed, hashing it otherwise
+     *
+     * @param file The file
+     * @return The CRC32 hash of the file
+     * @throws IOException If reading the file fails
+     */
+    public String hash_of(File file) throws IOException {
+        String route = file.getCanonicalPath();
+        Entry current = stat(file, null);
+        synchronized (this) {
+            Entry known = entries.get(route);
+            if (known != null && known.same_file(current)) {
+                return known.hash;
+            }
+        }
+        String hash = HashCalculator.getFileHash(file);
+        Entry hashed = stat(file, hash);
+        if (hashed.same_file(current)) {
+            // The file did not change while it was being hashed
+            synchronized (this) {
+                entries.put(route, hashed);
+                dirty = true;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Record the hash of a file that is already known, like the one of a verified download
+     *
+     * @param file The file
+     * @param hash The CRC32 hash of the file
+     */
+    public void put(File file, String hash) {
+        try {
+            Entry entry = stat(file, hash);
+            synchronized (this) {
+                entries.put(file.getCanonicalPath(), entry);
+                dirty = true;
+            }
+        } catch (IOException e) {
+            PeerImp.logger.info("Could not add " + file.getName() + " to the hash index");
+        }
+    }
+
+    private static Entry stat(File file, String hash) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), key == null ? "" : key.toString(),
+                hash);
+    }
+
+    /**
+     * Write the index if it changed, forgetting the files that no longer exist
+     * It is written to a temporary file first, so a crash never leaves a half-written index
+     */
+    public synchronized void save() {
+        Iterator<String> routes = entries.keySet().iterator();
+        while (routes.hasNext()) {
+            if (!new File(routes.next()).isFile()) {
+                routes.remove();
+                dirty = true;
+            }
+        }
+        if (!dirty) {
+            return;
+        }
+        Path temporary = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue().size);
+                    output.writeLong(entry.getValue().modified);
+                    output.writeUTF(entry.getValue().file_key);
+                    output.writeUTF(entry.getValue().hash);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            PeerImp.logger.warning("Could not save the hash index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * What is known of a file when it was hashed
+     */
+    private static class Entry {
+        final long size;
+        /**
+         * Modification time in milliseconds
+         */
+        final long modified;
+        /**
+         * The file key of the file system, the inode on Unix, empty if it has none
+         */
+        final String file_key;
+        final String hash;
+
+        Entry(long size, long modified, String file_key, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.file_key = file_key;
+            this.hash = hash;
+        }
+
+        boolean same_file(Entry other) {
+            return size == other.size && modified == other.modified && file_key.equals(other.file_key);
+        }
+    }
+}
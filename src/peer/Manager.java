@@ -1,6 +1,7 @@
 package peer;
 
 import java.rmi.Remote;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -16,6 +17,58 @@ public interface Manager extends Remote {
      */
     ByteSlice get_slice(String hash, Integer slice) throws Exception;
 
+    /**
+     * Return a run of consecutive slices of a file in a single call
+     *
+     * @param hash  the hash of the file
+     * @param from  the index of the first slice
+     * @param count the number of slices wanted, fewer are returned if the file ends before
+     * @return the slices, in order
+     * @throws Exception if something fails
+     */
+    ByteSlice[] get_slices(String hash, Integer from, Integer count) throws Exception;
+
+    /**
+     * Return a run of consecutive slices of a file, compressed with any of the given codecs where it saves space
+     * The slices are decompressed when they are received, so they are used like the ones of get_slices
+     *
+     * @param hash   the hash of the file
+     * @param from   the index of the first slice
+     * @param count  the number of slices wanted, fewer are returned if the file ends before
+     * @param codecs the codecs the downloader accepts, see SliceCodec
+     * @return the slices, in order
+     * @throws Exception if something fails
+     */
+    ByteSlice[] get_encoded_slices(String hash, Integer from, Integer count, Integer codecs) throws Exception;
+
+    /**
+     * Return the raw bytes of a range of a file
+     *
+     * @param hash   the hash of the file
+     * @param offset the position of the first byte
+     * @param length the number of bytes wanted, fewer are returned if the file ends before
+     * @return the bytes of the range
+     * @throws Exception if something fails
+     */
+    byte[] get_range(String hash, Long offset, Integer length) throws Exception;
+
+    /**
+     * Return the port of the data plane of this node, where slices can be downloaded without RMI
+     *
+     * @return the port, or null if the node has no data plane
+     * @throws Exception if something fails
+     */
+    Integer get_data_port() throws Exception;
+
+    /**
+     * Return the Merkle tree of the digests of every slice of a file, used to verify the slices as they are downloaded
+     *
+     * @param hash the hash of the file
+     * @return the Merkle tree of the file
+     * @throws Exception if something fails
+     */
+    MerkleTree get_merkle_tree(String hash) throws Exception;
+
     /**
      * Return the number of 1 MB slices needed to download a file
      *
@@ -34,6 +87,15 @@ public interface Manager extends Remote {
      */
     List<String> getHashesNeeded(String hash) throws Exception;
 
+    /**
+     * Tell which of the given files this node holds, used to find the seeders of every chunk of a file
+     *
+     * @param hashes The hashes of the files
+     * @return A bit for every hash, set if this node holds the file
+     * @throws Exception If something fails
+     */
+    BitSet get_availability(List<String> hashes) throws Exception;
+
     /**
      * Return the descriptions and tags of a content
      *
@@ -0,0 +1,157 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Serves slices as views into a memory mapping of the whole file, so no read or copy is done per request
+ * The pages stay in the OS page cache. The least recently used mappings are dropped when the mapped bytes go
+ * over the address space budget, but a dropped region is only unmapped by the garbage collector once the last
+ * slice viewing it has been sent, so the budget is best-effort: it bounds the mappings kept, not the address
+ * space used at a given moment
+ */
+public class MappedSliceReader implements SliceReader {
+    /**
+     * The size of a slice in bytes
+     */
+    private final int slice_size;
+    /**
+     * Number of mapped bytes above which the least recently used mappings are dropped
+     */
+    private final long budget;
+    /**
+     * Size of every mapped region but the last, a multiple of slice_size so slices never cross two regions
+     */
+    private final long region_size;
+    /**
+     * Mappings of the shared files in access order, by route, not by hash: the chunks of a file being assembled are
+     * read from its .part file with the hash of the whole file, and the mapping of the .part file outlives it
+     */
+    private final LinkedHashMap<String, Mapping> mappings;
+    /**
+     * Bytes currently mapped
+     */
+    private long mapped_bytes;
+
+    /**
+     * Constructor for MappedSliceReader
+     *
+     * @param slice_size the size of a slice in bytes
+     * @param budget     number of mapped bytes kept before dropping the least recently used mappings
+     */
+    public MappedSliceReader(int slice_size, long budget) {
+        this.slice_size = slice_size;
+        this.budget = budget;
+        this.region_size = (Integer.MAX_VALUE / slice_size) * (long) slice_size;
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+        this.mapped_bytes = 0;
+    }
+
+    @Override
+    public ByteSlice read_slice(String hash, String route, int slice_index) throws IOException {
+        Mapping mapping = mapping_of(hash, route);
+        long position = (long) slice_index * slice_size;
+        if (position >= mapping.size) {
+            return new ByteSlice(new byte[0], 0);
+        }
+        ByteBuffer region = mapping.regions[(int) (position / region_size)].duplicate();
+        int offset = (int) (position % region_size);
+        region.position(offset);
+        region.limit((int) Math.min(region.capacity(), offset + (long) slice_size));
+        return new ByteSlice(region.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Get the mapping of a file, mapping it if needed, and mark it as the most recently used
+     *
+     * @param hash  The hash the file is served with
+     * @param route The local route of the file
+     * @return The mapping
+     * @throws IOException If the file can't be mapped
+     */
+    private synchronized Mapping mapping_of(String hash, String route) throws IOException {
+        Mapping mapping = mappings.get(route);
+        if (mapping == null) {
+            mapping = map(hash, route);
+            mappings.put(route, mapping);
+            mapped_bytes += mapping.size;
+            evict(mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Drop the mappings of the files served with a hash, like the .part file of a file that has been assembled
+     *
+     * @param hash The hash of the file
+     */
+    @Override
+    public synchronized void forget(String hash) {
+        Iterator<Mapping> iterator = mappings.values().iterator();
+        while (iterator.hasNext()) {
+            Mapping mapping = iterator.next();
+            if (mapping.hash.equals(hash)) {
+                iterator.remove();
+                mapped_bytes -= mapping.size;
+            }
+        }
+    }
+
+    /**
+     * Drop mappings, eldest first, until the mapped bytes fit in the budget
+     * Dropped regions are unmapped by the garbage collector once the last view into them is gone
+     *
+     * @param kept The mapping just made, never dropped even if it alone goes over the budget
+     */
+    private void evict(Mapping kept) {
+        Iterator<Mapping> iterator = mappings.values().iterator();
+        while (mapped_bytes > budget && iterator.hasNext()) {
+            Mapping mapping = iterator.next();
+            if (mapping != kept) {
+                iterator.remove();
+                mapped_bytes -= mapping.size;
+            }
+        }
+    }
+
+    /**
+     * Map a whole file read only, in as many regions as needed
+     *
+     * @param hash  The hash the file is served with
+     * @param route The local route of the file
+     * @return The new mapping
+     * @throws IOException If mapping fails
+     */
+    private Mapping map(String hash, String route) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(route), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) Math.max(1, (size + region_size - 1) / region_size)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * region_size;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(region_size, size - start));
+            }
+            return new Mapping(hash, regions, size);
+        }
+    }
+
+    /**
+     * The mapped regions of a file
+     */
+    private static class Mapping {
+        final String hash;
+        final MappedByteBuffer[] regions;
+        final long size;
+
+        Mapping(String hash, MappedByteBuffer[] regions, long size) {
+            this.hash = hash;
+            this.regions = regions;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package peer;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Merkle tree of the SHA-256 digests of the slices of a file
+ * The leaves are used to verify every slice as soon as it is downloaded, and the root to check that
+ * the leaves have not been altered and to compare the trees sent by different seeders
+ */
+public class MerkleTree implements Serializable {
+    /**
+     * Digest of every slice, in order
+     */
+    private final byte[][] leaves;
+    /**
+     * Digest of the whole tree
+     */
+    private final byte[] root;
+
+    /**
+     * Constructor for MerkleTree
+     *
+     * @param leaves Digest of every slice, in order
+     */
+    public MerkleTree(byte[][] leaves) {
+        this.leaves = leaves;
+        this.root = compute_root(leaves);
+    }
+
+    /**
+     * Create the digest used by the leaves
+     *
+     * @return A new SHA-256 MessageDigest
+     */
+    public static MessageDigest new_digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Compute the root from the leaves, hashing every pair of nodes of a level into the next one
+     * The last node of a level with an odd number of nodes is paired with itself
+     *
+     * @param leaves Digest of every slice
+     * @return The root digest
+     */
+    private static byte[] compute_root(byte[][] leaves) {
+        MessageDigest digest = new_digest();
+        if (leaves.length == 0) {
+            return digest.digest();
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                digest.update(level[2 * i]);
+                digest.update(level[Math.min(2 * i + 1, level.length - 1)]);
+                next[i] = digest.digest();
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    /**
+     * Check that a slice has the expected digest
+     *
+     * @param slice_index The index of the slice
+     * @param bytes       The data of the slice
+     * @param length      Number of valid bytes in data
+     * @return True if the slice is valid
+     */
+    public boolean verify(int slice_index, byte[] bytes, int length) {
+        if (slice_index < 0 || slice_index >= leaves.length) {
+            return false;
+        }
+        MessageDigest digest = new_digest();
+        digest.update(bytes, 0, length);
+        return MessageDigest.isEqual(digest.digest(), leaves[slice_index]);
+    }
+
+    /**
+     * Check that the root matches the leaves, which can't be trusted if it doesn't
+     *
+     * @return True if the tree is consistent
+     */
+    public boolean is_consistent() {
+        return MessageDigest.isEqual(root, compute_root(leaves));
+    }
+
+    /**
+     * Get the tree of a run of consecutive slices, like the slices of a chunk of the file
+     *
+     * @param from  The index of the first slice
+     * @param count The number of slices
+     * @return A tree with the leaves of those slices
+     */
+    public MerkleTree subtree(int from, int count) {
+        return new MerkleTree(Arrays.copyOfRange(leaves, from, from + count));
+    }
+
+    /**
+     * Check if two trees describe the same data
+     *
+     * @param other The other tree
+     * @return True if both roots are the same
+     */
+    public boolean same_root(MerkleTree other) {
+        return Arrays.equals(root, other.root);
+    }
+
+    public int getSlices() {
+        return leaves.length;
+    }
+}
@@ -1,25 +1,18 @@
 package peer;
 
 /**
- * Abstract class defining extra functionalities for a Thread
+ * Abstract class defining a task run by a TaskScheduler
  */
-public abstract class MyThread extends Thread {
+public abstract class MyThread implements Runnable {
     /**
-     * Check if a thread has finished
+     * Get the progress of this task
      *
-     * @return True if the thread can be joined
-     */
-    public abstract boolean isFinished();
-
-    /**
-     * Get the progress of this thread
-     *
-     * @return hash if DownloadThread, hash:threads_finished/total_threads if FileThread
+     * @return hash and window if DownloadThread, hash:slices_finished/total_slices if FileThread
      */
     public abstract String get_progress();
 
     /**
-     * Allocate enough space to download a file
+     * Allocate enough space to download a file, called before run() by the thread that runs the task
      *
      * @throws Exception If the remote call fails
      */
@@ -0,0 +1,76 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Allocator of fixed size segments of direct memory, outside the Java heap
+ * Memory is reserved in large slabs as it is needed and segments are reused, never given back
+ */
+public class OffHeapSlab {
+    /**
+     * Number of segments reserved at once when there are no free ones
+     */
+    private static final int SEGMENTS_PER_SLAB = 64;
+    /**
+     * Size in bytes of every segment
+     */
+    private final int segment_size;
+    /**
+     * Maximum number of segments that can be handed out
+     */
+    private final int max_segments;
+    /**
+     * Segments that have been reserved and are not in use
+     */
+    private final ArrayDeque<ByteBuffer> free_segments;
+    /**
+     * Number of segments reserved so far
+     */
+    private int reserved;
+
+    /**
+     * Constructor for OffHeapSlab
+     *
+     * @param segment_size size in bytes of every segment
+     * @param max_segments maximum number of segments that can be handed out
+     */
+    public OffHeapSlab(int segment_size, int max_segments) {
+        this.segment_size = segment_size;
+        this.max_segments = max_segments;
+        this.free_segments = new ArrayDeque<>();
+        this.reserved = 0;
+    }
+
+    /**
+     * Take a free segment, reserving a new slab if needed
+     *
+     * @return A cleared segment, or null if the maximum number of segments is in use
+     */
+    public synchronized ByteBuffer allocate() {
+        if (free_segments.isEmpty() && reserved < max_segments) {
+            int count = Math.min(SEGMENTS_PER_SLAB, max_segments - reserved);
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * segment_size);
+            for (int i = 0; i < count; i++) {
+                slab.limit((i + 1) * segment_size);
+                slab.position(i * segment_size);
+                free_segments.add(slab.slice());
+            }
+            reserved += count;
+        }
+        ByteBuffer segment = free_segments.poll();
+        if (segment != null) {
+            segment.clear();
+        }
+        return segment;
+    }
+
+    /**
+     * Give a segment back so it can be reused
+     *
+     * @param segment A segment obtained with allocate()
+     */
+    public synchronized void free(ByteBuffer segment) {
+        free_segments.push(segment);
+    }
+}
@@ -3,15 +3,26 @@ package peer;
 import com.mashape.unirest.http.exceptions.UnirestException;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,13 +54,17 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
      */
     public Registry registry;
     /**
-     * Thread that will run all the time, managing a queue of file threads
+     * Scheduler running the file threads, a bounded number of files are downloaded at once
      */
-    public GlobalQueueThread file_queue_thread;
+    public TaskScheduler file_queue_thread;
     /**
-     * Thread that will run all the time, managing a queue of download threads
+     * Scheduler running the download pipelines, a bounded number of them are active at once
      */
-    public GlobalQueueThread download_queue_thread;
+    public TaskScheduler download_queue_thread;
+    /**
+     * Chooses the seeders of every download and balances the requests between them
+     */
+    private final SeederScheduler seeder_scheduler = new SeederScheduler(1024 * 1024);
     /**
      * The Manager of this peer
      */
@@ -65,6 +80,7 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
      * @throws RemoteException When Remote calls fail
      */
     protected PeerImp() throws RemoteException {
+        super(0, TunedSocketFactory.for_objects(), TunedSocketFactory.for_objects());
     }
 
     /**
@@ -74,6 +90,7 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
      * @throws RemoteException When remote calls fail
      */
     protected PeerImp(PeerInfo node_peer_info) throws RemoteException {
+        super(0, TunedSocketFactory.for_objects(), TunedSocketFactory.for_objects());
         this.saved_peers_info.add(node_peer_info);
     }
 
@@ -102,11 +119,13 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
      * @throws NotBoundException when "peer" and "manager" are not in node_peer_info's registry
      */
     public void add_node_components(PeerInfo node_peer_info) throws RemoteException, NotBoundException {
-        Registry registry = LocateRegistry.getRegistry(node_peer_info.ip, node_peer_info.port);
+        Registry registry = LocateRegistry.getRegistry(node_peer_info.ip, node_peer_info.port,
+                TunedSocketFactory.for_registry());
         Peer peer = (Peer) registry.lookup("peer");
         Manager manager = (Manager) registry.lookup("manager");
         this.saved_peers.put(node_peer_info.toString(), peer);
         this.saved_managers.put(node_peer_info.toString(), manager);
+        this.seeder_scheduler.register(node_peer_info, manager);
     }
 
     /**
@@ -158,12 +177,10 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
             file_threads = 4;
             logger.info("Couldn't parse the number, setting default 4");
         }
-        Semaphore upload_semaphore = new Semaphore(upload_threads);
-        this.manager = new ContentManager(file_route, upload_semaphore, logger, this.own_info);
-        this.file_queue_thread = new GlobalQueueThread(file_threads);
-        this.download_queue_thread = new GlobalQueueThread(download_threads);
-        this.file_queue_thread.start();
-        this.download_queue_thread.start();
+        UploadSlots upload_slots = new UploadSlots(upload_threads, Integer.getInteger("duchnet.upload.unchoked", 4));
+        this.manager = new ContentManager(file_route, upload_slots, logger, this.own_info);
+        this.file_queue_thread = new TaskScheduler(file_threads, "file-queue");
+        this.download_queue_thread = new TaskScheduler(download_threads, "download-queue");
         // /home/joel/Escriptori/DC/Duchnet/Files1
         this.registry.rebind("manager", this.manager);
         this.registry.rebind("peer", this);
@@ -176,6 +193,7 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
         logger.info("Peer started successfully at " + own_info.ip + ":" + own_info.port.toString());
         logger.setLevel(Level.WARNING);
         logger.severe("DON'T FORGET TO REGISTER/LOGIN!!!!1");
+        this.resume_downloads();
         this.service_loop();
     }
 
@@ -209,6 +227,7 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
                     System.out.println("DOWNLOAD\t\tStart a download process");
                     System.out.println("DEBUG\t\t\tToggle between INFO and WARNING debug");
                     System.out.println("PROGRESS\t\tShow information about downloads in motion");
+                    System.out.println("LIMIT\t\t\tChange the upload bandwidth limits");
                     System.out.println("REGISTER\t\tRegister in the web service");
                     System.out.println("LOGIN\t\t\tLogin to the web service in this session");
                     System.out.println("CHANGE\t\t\tChange your password in the service");
@@ -259,6 +278,26 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
                     this.download_queue_thread.printProgress();
                     System.out.println("---------------------");
                     this.file_queue_thread.printProgress();
+                    System.out.println("---------------------");
+                    System.out.println("CACHE: " + this.manager.get_cache_stats());
+                    System.out.println("SEEDERS:");
+                    System.out.print(this.seeder_scheduler.get_stats());
+                    System.out.println("UPLOADS: " + this.manager.getUpload_limiter().get_stats());
+                    System.out.print(this.manager.getUpload_slots().get_stats());
+                    System.out.println("INDEX: " + this.manager.get_index_progress());
+                    break;
+                case "limit":
+                    // Change the upload bandwidth limits
+                    try {
+                        System.out.println("Type the total upload limit in KB/s, 0 for no limit: ");
+                        long global_rate = Long.parseLong(scanner.nextLine().strip());
+                        System.out.println("Type the upload limit of every downloader in KB/s, 0 for no limit: ");
+                        long peer_rate = Long.parseLong(scanner.nextLine().strip());
+                        this.manager.getUpload_limiter().set_global_rate(global_rate * 1024);
+                        this.manager.getUpload_limiter().set_peer_rate(peer_rate * 1024);
+                    } catch (NumberFormatException e) {
+                        logger.warning("The limit has to be a number");
+                    }
                     break;
                 case "register":
                     // Register user
@@ -432,57 +471,51 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
      * @throws Exception if something fails
      */
     public void fetch_file(Content file_to_download, String filename) throws Exception {
-        List<PeerInfo> seeders = find_seeders(file_to_download, new LinkedList<>());
-        List<PeerInfo> seeders2 = this.manager.getSeeders(file_to_download.getHash());
-        for (PeerInfo p : seeders2) {
-            if (!seeders.contains(p)) {
-                seeders.add(p);
-            }
-        }
-        if (seeders.size() == 0) {
-            logger.severe("The file has no seeders");
+        List<Manager> seed_managers = find_seed_managers(file_to_download);
+        if (seed_managers == null) {
             return;
         }
-        // Do not transfer a file that is already owned by the user
-        if (seeders.contains(this.own_info)) {
-            logger.warning("You already own this file, aborting download...");
-            return;
-        }
-        // Request the file from a known seeder if possible
-        List<Manager> seed_managers = new LinkedList<>();
-        for (PeerInfo peer_info : seeders) {
-            if (!this.saved_peers_info.contains(peer_info)) {
-                add_node(peer_info);
-            }
-            seed_managers.add(saved_managers.get(peer_info.toString()));
-        }
         String file_location;
         logger.info("Adding " + filename + " to the download queue");
 
-        int rand = (new Random().nextInt()) % seed_managers.size();
-        if (rand < 0) {
-            rand = 0;
-        }
-        Manager r_manager = seed_managers.get(rand);
-
+        Manager r_manager = null;
         List<String> hashes = null;
-
-        while (hashes == null) {
+        for (Manager seed_manager : seeder_scheduler.rank(seed_managers)) {
             try {
-                hashes = manager.getHashesNeeded(file_to_download.getHash());
+                hashes = seed_manager.getHashesNeeded(file_to_download.getHash());
+                r_manager = seed_manager;
+                break;
             } catch (Exception e) {
-                seed_managers.remove(rand);
-                rand = (new Random().nextInt()) % seed_managers.size();
-                if (rand < 0) {
-                    rand = 0;
-                }
-                r_manager = seed_managers.get(rand);
+                logger.info("A seeder of " + filename + " could not send its chunks");
             }
         }
+        if (hashes == null) {
+            logger.severe("No seeder of " + filename + " is available");
+            return;
+        }
+        if (hashes.size() > 1) {
+            // Seeders describe the chunks of a file the first time they are asked, only then can they serve them
+            Manager chunks_manager = r_manager;
+            seed_managers.parallelStream().filter(seed_manager -> seed_manager != chunks_manager).forEach(seed_manager -> {
+                try {
+                    seed_manager.getHashesNeeded(file_to_download.getHash());
+                } catch (Exception e) {
+                    logger.info("A seeder of " + filename + " could not describe its chunks");
+                }
+            });
+        }
+
+        // Known nodes that are not seeders of the whole file may still hold some of its chunks
+        Set<Manager> candidates = new LinkedHashSet<>(seed_managers);
+        candidates.addAll(this.saved_managers.values());
+        Map<Manager, BitSet> availability = seeder_scheduler.probe(candidates, hashes);
 
         List<MyThread> threads = new LinkedList<>();
-        for (String hash : hashes) {
-            boolean to_add = true;
+        // Chunks with the same bytes are downloaded once and copied to the other offsets when the file is assembled
+        Set<String> queued = new HashSet<>();
+        for (int index : seeder_scheduler.rarest_first(availability, hashes.size())) {
+            String hash = hashes.get(index);
+            boolean to_add = queued.add(hash);
             for (Content content : this.manager.getContents()) {
                 if (content.getHash().equals(hash)) {
                     to_add = false;
@@ -490,9 +523,13 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
                 }
             }
             if (to_add) {
-                file_location = this.manager.getFolder_route() + "/" + r_manager.get_filename(hash, file_to_download.getFilenames());
-                threads.add(new FileQueueThread(file_queue_thread, download_queue_thread, seed_managers,
-                        hash, file_location, hashes, this.manager, filename));
+                List<Manager> holders = seeder_scheduler.holders(availability, index);
+                if (holders.isEmpty()) {
+                    holders = seeder_scheduler.rank(seed_managers);
+                }
+                file_location = this.manager.getFolder_route() + "/" + holders.get(0).get_filename(hash, file_to_download.getFilenames());
+                threads.add(new FileQueueThread(file_queue_thread, download_queue_thread, seeder_scheduler, holders,
+                        hash, file_to_download.getHash(), file_location, hashes, this.manager, filename));
             }
         }
         logger.info("ADDING THREADS");
@@ -506,6 +543,96 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
         }
     }
 
+    /**
+     * Find the Managers of all the nodes that own a file, in the network and in the web service
+     *
+     * @param file The file we are looking for
+     * @return The managers of the seeders, or null if there are none or if this node already owns the file
+     * @throws RemoteException if remote calls fail
+     */
+    private List<Manager> find_seed_managers(Content file) throws RemoteException {
+        List<PeerInfo> seeders = find_seeders(file, new LinkedList<>());
+        List<PeerInfo> seeders2 = this.manager.getSeeders(file.getHash());
+        for (PeerInfo p : seeders2) {
+            if (!seeders.contains(p)) {
+                seeders.add(p);
+            }
+        }
+        if (seeders.size() == 0) {
+            logger.severe("The file has no seeders");
+            return null;
+        }
+        // Do not transfer a file that is already owned by the user
+        if (seeders.contains(this.own_info)) {
+            logger.warning("You already own this file, aborting download...");
+            return null;
+        }
+        // Request the file from a known seeder if possible
+        List<Manager> seed_managers = new LinkedList<>();
+        for (PeerInfo peer_info : seeders) {
+            if (!this.saved_peers_info.contains(peer_info)) {
+                add_node(peer_info);
+            }
+            seed_managers.add(saved_managers.get(peer_info.toString()));
+        }
+        return seed_managers;
+    }
+
+    /**
+     * Resume the downloads that were not finished when the node stopped, using the journals left in the folder
+     * Only the slices missing from their .part files are downloaded again
+     * The seeders are found by the hash of the whole file, they don't announce the chunks. A file downloaded by
+     * chunks is fetched again like a new download: the chunks with a journal reopen it, and the ones that were
+     * still waiting in the queue when the node stopped, which have none, are downloaded too
+     */
+    public void resume_downloads() {
+        File[] journals = new File(this.manager.getFolder_route()).listFiles(file ->
+                file.getName().startsWith(".") && file.getName().endsWith(".journal"));
+        if (journals == null) {
+            return;
+        }
+        List<MyThread> threads = new LinkedList<>();
+        Map<String, SliceJournal> chunked_files = new LinkedHashMap<>();
+        for (File journal_file : journals) {
+            try {
+                SliceJournal journal = SliceJournal.read(journal_file.toPath());
+                if (journal.getFile_hash() == null) {
+                    logger.warning("Journal " + journal_file.getName() + " is too old to be resumed");
+                    continue;
+                }
+                if (journal.getFriend_hashes().size() > 1) {
+                    chunked_files.putIfAbsent(journal.getFile_hash(), journal);
+                    continue;
+                }
+                Content file = new Content(new LinkedList<>(), new LinkedList<>(), journal.getFile_hash(), new LinkedList<>());
+                List<Manager> seed_managers = find_seed_managers(file);
+                if (seed_managers == null) {
+                    logger.warning("Can't resume " + journal.getFile_name() + " yet");
+                    continue;
+                }
+                logger.warning("Resuming the download of " + journal.getFile_name());
+                String file_location = this.manager.getFolder_route() + "/" + journal.getFile_name();
+                threads.add(new FileQueueThread(file_queue_thread, download_queue_thread, seeder_scheduler,
+                        seeder_scheduler.rank(seed_managers), journal.getHash(), journal.getFile_hash(), file_location,
+                        journal.getFriend_hashes(), this.manager, journal.getOriginal_name()));
+            } catch (IOException e) {
+                logger.warning("Journal " + journal_file.getName() + " could not be read");
+            }
+        }
+        file_queue_thread.add_threads(threads);
+        for (SliceJournal journal : chunked_files.values()) {
+            Content file = new Content(new LinkedList<>(Collections.singleton(journal.getOriginal_name())),
+                    new LinkedList<>(), journal.getFile_hash(), new LinkedList<>());
+            logger.warning("Resuming the download of " + journal.getOriginal_name());
+            try {
+                // It asks the seeders for the chunks first, so they can serve them
+                fetch_file(file, journal.getOriginal_name());
+            } catch (Exception e) {
+                logger.warning("Can't resume " + journal.getOriginal_name() + " yet");
+            }
+        }
+    }
+
     /**
      * Get the input of the user to know which file to download
      *
@@ -555,283 +682,745 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
     }
 
     /**
-     * A thread that manages a queue of threads
-     * When a thread is done this thread is alerted, to make way for the next one
+     * Task used to handle the download threads of a single file (or chunk)
+     * Its job is to add the download threads to the queue and wait for them all to finish, nad finally write the file to the disk
+     * Every slice is written to its offset of a preallocated hidden .part file as soon as it arrives,
+     * the one of the whole file if it is a chunk
      */
-    public static class GlobalQueueThread extends Thread {
-        final Queue<MyThread> queue;
-        final MyThread[] active;
-        final Object lck;
-        boolean running = true;
+    public static class FileQueueThread extends MyThread {
+        /**
+         * Maximum number of slices asked for in a single remote call
+         */
+        static final int MAX_BATCH = Integer.getInteger("duchnet.batch.max", 16);
+        /**
+         * Missing slices below which every batch in flight is also asked to the idle seeders, the endgame
+         */
+        static final int ENDGAME_SLICES = Integer.getInteger("duchnet.endgame", 8);
+        /**
+         * Percentile of the request times a request has to exceed to be asked to another seeder too
+         */
+        static final int HEDGE_PERCENTILE = Integer.getInteger("duchnet.hedge.percentile", 95);
+        /**
+         * Requests that have to be timed before any is hedged
+         */
+        static final int MIN_LATENCY_SAMPLES = 8;
+        /**
+         * True to ask the seeders for compressed slices, which saves bandwidth on slow links with compressible files
+         */
+        static final boolean COMPRESS = Boolean.getBoolean("duchnet.compress");
+        final TaskScheduler file_queue_thread;
+        final TaskScheduler download_queue_thread;
+        final SeederScheduler seeder_scheduler;
+        final List<Manager> seed_managers;
+        final String file_location;
+        final List<String> friend_hashes;
+        final ContentManager manager;
+        final String original_name;
+        String hash_to_download;
+        /**
+         * Hash of the whole file, the same as hash_to_download if the download is not a chunk
+         */
+        final String file_hash;
+        /**
+         * Slices that have already been written to the file
+         */
+        BitSet completed;
+        /**
+         * Number of slices of the file
+         */
+        int slices_total;
+        /**
+         * Size of the file, known when its last slice arrives
+         */
+        long file_size;
+        /**
+         * Channel of the .part file where the slices are written
+         */
+        FileChannel target;
+        /**
+         * File the chunks are written in if the download is a chunk, null if it is a whole file
+         */
+        ChunkAssembly assembly;
+        /**
+         * Index of the chunk if the download is a chunk
+         */
+        int chunk_index;
+        /**
+         * Position of the first slice in the .part file, the offset of the chunk if the download is a chunk
+         */
+        long base;
+        /**
+         * First slice and number of slices of every batch that no pipeline has taken yet, of at most MAX_BATCH
+         * slices, cut to the batch size of the seeder when a pipeline takes them
+         */
+        final ConcurrentLinkedDeque<int[]> pending = new ConcurrentLinkedDeque<>();
+        /**
+         * Journal recording the completed slices, so the download can be resumed after a restart
+         */
+        SliceJournal journal;
+        /**
+         * Number of pipelines of this file that have not stopped yet
+         */
+        int pipelines_running;
+        /**
+         * Merkle tree every slice is verified against before it is written, null if no seeder could send one
+         * It comes from the seeders and is not tied to the hash of the file, so it only rejects bad slices early,
+         * the complete file is still checked against its hash
+         */
+        MerkleTree tree;
+        /**
+         * Seeders that sent a slice that failed verification, by slice index, so it is asked to another seeder
+         */
+        final ConcurrentHashMap<Integer, Set<Manager>> rejected = new ConcurrentHashMap<>();
+        /**
+         * Batches being downloaded, oldest first, with the time of their first request in nanoseconds
+         */
+        final Map<int[], Long> started = new LinkedHashMap<>();
+        /**
+         * Seeders every batch being downloaded has been asked to
+         */
+        final Map<int[], Set<Manager>> requested = new HashMap<>();
+        /**
+         * Times of the last requests, in nanoseconds, used to know which requests are unusually slow
+         */
+        final long[] latencies = new long[64];
+        /**
+         * Number of requests timed
+         */
+        int latency_samples;
 
         /**
-         * Constructor for a queue thread
+         * Constructor for a file thread
          *
-         * @param allowed the number of active threads allowed at once
+         * @param file_thread      Thread managing all file threads
+         * @param download_thread  Thread managing all download threads
+         * @param seeder_scheduler Scheduler balancing the requests between seeders
+         * @param seed_managers    All the managers that own the file, the preferred ones first
+         * @param hash_to_download Hash of the file we want to download
+         * @param file_hash        Hash of the whole file, the same as hash_to_download if it is not a chunk
+         * @param file_location    Location where to save this file
+         * @param friend_hashes    If the file is a chunk, all the hashes needed to rebuild original file
+         * @param manager          The manager of this PeerImp
+         * @param name             The name of the whole file, if it needs to be rebuilt
          */
-        public GlobalQueueThread(int allowed) {
-            queue = new LinkedList<>();
-            active = new MyThread[allowed];
-            lck = new Object();
+        public FileQueueThread(TaskScheduler file_thread, TaskScheduler download_thread,
+                               SeederScheduler seeder_scheduler, List<Manager> seed_managers, String hash_to_download,
+                               String file_hash, String file_location, List<String> friend_hashes,
+                               ContentManager manager, String name) {
+            this.file_queue_thread = file_thread;
+            this.download_queue_thread = download_thread;
+            this.seeder_scheduler = seeder_scheduler;
+            this.seed_managers = seed_managers;
+            this.hash_to_download = hash_to_download;
+            this.file_hash = file_hash;
+            this.completed = null;
+            this.file_location = file_location;
+            this.friend_hashes = friend_hashes;
+            this.manager = manager;
+            this.original_name = name;
         }
 
         /**
-         * Run method of the thread, which runs forever.
-         * Loops forever, only releasing the synchronized when no new threads can be activated
-         * When the queue is modified, it wakes up to see if it's possible to activate a new thread
+         * Splits the file in batches, adds a download pipeline for every seeder to the queue,
+         * waits for all of them to stop and writes the file
          */
         @Override
         public void run() {
             try {
+                logger.info("Attempting to add all threads");
+                for (int i = 0; i < this.slices_total; i++) {
+                    if (is_completed(i)) {
+                        continue;
+                    }
+                    int count = 1;
+                    while (count < MAX_BATCH && i + count < this.slices_total && !is_completed(i + count)) {
+                        count++;
+                    }
+                    pending.add(new int[]{i, count});
+                    i += count - 1;
+                }
+                List<MyThread> threads = new LinkedList<>();
+                for (Manager seed_manager : seed_managers) {
+                    logger.info("Attempting to add a pipeline of " + this.hash_to_download + " to download queue");
+                    threads.add(new DownloadThread(this, seed_manager));
+                }
+                download_queue_thread.add_threads(threads);
+                logger.info("Threads added");
                 synchronized (this) {
-                    while (running) {
-                        logger.info("Global Queue waits " + this.getName());
+                    // Pipelines still waiting for abandoned requests are not waited for
+                    while (pipelines_running > 0 && !is_finished()) {
                         this.wait();
-                        logger.info("Global Queue owns the critical zone" + this.getName());
-                        synchronized (lck) {
-                            for (int i = 0; i < this.active.length; i++) {
-                                if (this.active[i] != null && this.active[i].isFinished()) {
-                                    // this.active[i].write_file();
-                                    // Per evitar el deadlock de alert()
-                                    if (!this.active[i].getState().equals(State.BLOCKED)) {
-                                        this.active[i].join(2000);
-                                    } else {
-                                        continue;
-                                    }
-                                    this.active[i] = null;
-                                }
-                                if (this.active[i] == null && !this.queue.isEmpty()) {
-                                    this.active[i] = this.queue.poll();
-                                    logger.info("New thread from " + this.getName());
-                                    this.active[i].create_slice_array();
-                                    this.active[i].start();
-                                }
-                            }
-                        }
                     }
                 }
+                this.write_file();
             } catch (InterruptedException e) {
-                logger.severe("InterruptedException at " + this.getName());
-            } catch (Exception e) {
-                e.printStackTrace();
+                logger.severe("ERROR WHILE DOWNLOADING " + hash_to_download);
             }
         }
 
         /**
-         * Used by other threads after finishing waking up this thread at the wait()
+         * Take the next batch that a seeder has to download, skipping the ones with slices it already sent corrupted
+         * A batch larger than the batch size of the seeder is cut, and the rest is left first in the queue
          *
-         * @param alerting The thread alerting this one, used to set its finished attribute
+         * @param seed_manager The manager of the seeder
+         * @return The index of the first slice of the batch and the number of slices, or null if there are no batches
+         * left for this seeder
          */
-        public void alert(DownloadThread alerting) {
-            logger.info("Main thread awaits critical zone");
-            synchronized (this) {
-                if (alerting != null) {
-                    alerting.finished = true;
+        int[] next_batch(Manager seed_manager) {
+            for (int[] batch : pending) {
+                if (!is_rejected(seed_manager, batch) && pending.remove(batch)) {
+                    int size = seeder_scheduler.batch_size(seed_manager, MAX_BATCH);
+                    if (batch[1] > size) {
+                        pending.addFirst(new int[]{batch[0] + size, batch[1] - size});
+                        batch = new int[]{batch[0], size};
+                    }
+                    synchronized (this) {
+                        started.put(batch, System.nanoTime());
+                        requested.computeIfAbsent(batch, key -> new HashSet<>()).add(seed_manager);
+                    }
+                    return batch;
                 }
-                logger.info("Main thread notifies global thread");
-                this.notify();
             }
-            logger.info("Main thread is out of critical zone");
+            return duplicate_batch(seed_manager);
         }
 
         /**
-         * Executed by other threads, adds a list of threads to the queue and notifies
+         * Take a batch that other seeders are downloading, to ask it to this one too
+         * During the endgame every batch in flight can be taken, before it only the ones that have taken
+         * longer than the HEDGE_PERCENTILE of the request times
+         * The batch asked to the fewest seeders is taken, and the first answer for every slice is the one written
          *
-         * @param threads All the threads added to the queue
+         * @param seed_manager The manager of the seeder
+         * @return The batch, or null if there is none to duplicate
          */
-        public void add_threads(List<MyThread> threads) {
-            logger.info("Other thread awaits critical zone on " + this.getName());
-            synchronized (this) {
-                logger.info("Other thread owns critical zone on " + this.getName());
-                for (MyThread thr : threads) {
-                    logger.info("Added thread successfully to queue in " + this.getName());
-                    queue.add(thr);
+        synchronized int[] duplicate_batch(Manager seed_manager) {
+            boolean endgame = slices_total - completed.cardinality() <= ENDGAME_SLICES;
+            long budget = hedge_budget();
+            long now = System.nanoTime();
+            int[] best = null;
+            for (Map.Entry<int[], Long> entry : started.entrySet()) {
+                int[] batch = entry.getKey();
+                if (!can_duplicate(seed_manager, batch) || (!endgame && now - entry.getValue() < budget)) {
+                    continue;
+                }
+                if (best == null || requested.get(batch).size() < requested.get(best).size()) {
+                    best = batch;
                 }
-                logger.info("Other thread notifies global thread " + this.getName());
-                this.notify();
             }
-            logger.info("Main thread is out of critical zone");
+            if (best != null) {
+                logger.info((endgame ? "Endgame" : "Hedged") + " request of batch " + best[0] + " of " + hash_to_download);
+                requested.get(best).add(seed_manager);
+            }
+            return best;
         }
 
         /**
-         * Print the progress of current downloads/files
+         * Check if a seeder could be asked for a batch that is being downloaded
+         *
+         * @param seed_manager The manager of the seeder
+         * @param batch        The index of the first slice and the number of slices
+         * @return True if the batch still has missing slices and the seeder has not been asked for it
          */
-        public void printProgress() {
-            List<String> progress = new LinkedList<>();
-            for (MyThread thread : this.active) {
-                if (thread == null) {
-                    progress.add("null");
-                } else {
-                    progress.add(thread.get_progress());
+        synchronized boolean can_duplicate(Manager seed_manager, int[] batch) {
+            if (requested.get(batch).contains(seed_manager) || is_rejected(seed_manager, batch)) {
+                return false;
+            }
+            for (int i = batch[0]; i < batch[0] + batch[1]; i++) {
+                if (!completed.get(i)) {
+                    return true;
                 }
             }
-            System.out.println("ACTIVE: " + progress);
-            System.out.println("QUEUE: " + queue.size());
+            return false;
         }
-    }
 
-    /**
-     * Thread used to handle the download threads of a single file (or chunk)
-     * Its job is to add the download threads to the queue and wait for them all to finish, nad finally write the file to the disk
-     */
-    public static class FileQueueThread extends MyThread {
-        final GlobalQueueThread file_queue_thread;
-        final GlobalQueueThread download_queue_thread;
-        final List<Manager> seed_managers;
-        final String file_location;
-        final List<String> friend_hashes;
-        final ContentManager manager;
-        final String original_name;
-        String hash_to_download;
-        ByteSlice[] slices_array;
+        /**
+         * Check if a seeder without batches left may get one to duplicate later
+         *
+         * @param seed_manager The manager of the seeder
+         * @return True if other seeders are downloading batches this one could be asked for
+         */
+        synchronized boolean has_duplicate_work(Manager seed_manager) {
+            for (int[] batch : started.keySet()) {
+                if (can_duplicate(seed_manager, batch)) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
         /**
-         * Constructor for a file thread
+         * Wait until a request ends or some time passes
          *
-         * @param file_thread      Thread managing all file threads
-         * @param download_thread  Thread managing all download threads
-         * @param seed_managers    All the managers that own the file
-         * @param hash_to_download Hash of the file we want to download
-         * @param file_location    Location where to save this file
-         * @param friend_hashes    If the file is a chunk, all the hashes needed to rebuild original file
-         * @param manager          The manager of this PeerImp
-         * @param name             The name of the whole file, if it needs to be rebuilt
+         * @param millis Maximum milliseconds to wait
+         * @throws InterruptedException If the thread is interrupted while waiting
          */
-        public FileQueueThread(GlobalQueueThread file_thread, GlobalQueueThread download_thread,
-                               List<Manager> seed_managers, String hash_to_download, String file_location,
-                               List<String> friend_hashes, ContentManager manager, String name) {
-            this.file_queue_thread = file_thread;
-            this.download_queue_thread = download_thread;
-            this.seed_managers = seed_managers;
-            this.hash_to_download = hash_to_download;
-            this.slices_array = null;
-            this.file_location = file_location;
-            this.friend_hashes = friend_hashes;
-            this.manager = manager;
-            this.original_name = name;
+        synchronized void await_work(long millis) throws InterruptedException {
+            this.wait(millis);
         }
 
         /**
-         * Creates all downloads and adds them to the queue
+         * Record the end of a request of a batch, forgetting the batch when none of its requests are left
+         *
+         * @param batch        The index of the first slice and the number of slices
+         * @param seed_manager The manager of the seeder that was asked
+         * @param nanos        Time the request took
+         * @param success      True if the request succeeded
          */
-        @Override
-        public void run() {
+        synchronized void finish_request(int[] batch, Manager seed_manager, long nanos, boolean success) {
+            if (success) {
+                latencies[latency_samples % latencies.length] = nanos;
+                latency_samples++;
+            }
+            Set<Manager> seeders = requested.get(batch);
+            if (seeders != null) {
+                seeders.remove(seed_manager);
+                if (seeders.isEmpty() || success) {
+                    requested.remove(batch);
+                    started.remove(batch);
+                }
+            }
+            this.notifyAll();
+        }
+
+        /**
+         * Get the time a request has to exceed to be hedged, the HEDGE_PERCENTILE of the last request times
+         *
+         * @return The time in nanoseconds, Long.MAX_VALUE if too few requests have been timed
+         */
+        synchronized long hedge_budget() {
+            int samples = Math.min(latency_samples, latencies.length);
+            if (samples < MIN_LATENCY_SAMPLES) {
+                return Long.MAX_VALUE;
+            }
+            long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(HEDGE_PERCENTILE / 100.0 * samples) - 1)];
+        }
+
+        /**
+         * Check if every slice has been written
+         *
+         * @return True if the file is complete
+         */
+        synchronized boolean is_finished() {
+            return completed != null && completed.cardinality() == slices_total;
+        }
+
+        /**
+         * Check if a seeder sent a corrupted copy of any slice of a batch
+         *
+         * @param seed_manager The manager of the seeder
+         * @param batch        The index of the first slice and the number of slices
+         * @return True if the batch has to be downloaded from another seeder
+         */
+        boolean is_rejected(Manager seed_manager, int[] batch) {
+            if (rejected.isEmpty()) {
+                return false;
+            }
+            for (int i = batch[0]; i < batch[0] + batch[1]; i++) {
+                Set<Manager> seeders = rejected.get(i);
+                if (seeders != null && seeders.contains(seed_manager)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Put back the slices of a batch whose download failed that are still missing, so another pipeline can retry them
+         *
+         * @param batch The index of the first slice of the batch and the number of slices
+         */
+        void retry_batch(int[] batch) {
+            int end = batch[0] + batch[1];
+            for (int i = end - 1; i >= batch[0]; i--) {
+                if (is_completed(i)) {
+                    continue;
+                }
+                int from = i;
+                while (from > batch[0] && !is_completed(from - 1)) {
+                    from--;
+                }
+                pending.addFirst(new int[]{from, i - from + 1});
+                i = from;
+            }
+        }
+
+        /**
+         * Download a batch of slices from a seeder and write the ones that pass verification to the file
+         *
+         * @param seed_manager The manager of the seeder
+         * @param batch        The index of the first slice and the number of slices
+         * @throws Exception If the remote call or writing fails, or if any slice is corrupted
+         */
+        void fetch(Manager seed_manager, int[] batch) throws Exception {
+            int from = batch[0];
+            ByteSlice[] results = request_slices(seed_manager, from, batch[1]);
+            boolean corrupted = false;
+            for (int i = 0; i < results.length; i++) {
+                if (verify(seed_manager, from + i, results[i])) {
+                    store_slice(from + i, results[i]);
+                } else {
+                    corrupted = true;
+                }
+            }
+            if (corrupted) {
+                throw new Exception("Corrupted slices in batch " + from + " of " + hash_to_download);
+            }
+        }
+
+        /**
+         * Ask a seeder for a run of slices, recording the time it took and the bytes received in the seeder's stats
+         * With duchnet.compress the slices are asked compressed through RMI, for slow links
+         * Otherwise the data plane of the seeder is used if it has one, and RMI if it hasn't or if the data plane fails
+         *
+         * @param seed_manager The manager of the seeder
+         * @param from         The index of the first slice
+         * @param count        The number of slices
+         * @return The slices, in order
+         * @throws Exception If the remote call fails
+         */
+        ByteSlice[] request_slices(Manager seed_manager, int from, int count) throws Exception {
+            long start = System.nanoTime();
+            ByteSlice[] results = null;
             try {
-                logger.info("Attempting to add all threads");
-                List<MyThread> threads = new LinkedList<>();
-                for (int i = 0; i < this.slices_array.length; i++) {
-                    Manager random_manager = seed_managers.get(new Random().nextInt(seed_managers.size()));
-                    logger.info("Attempting to add " + this.hash_to_download + " " + i + "to download queue ");
-                    threads.add(new DownloadThread(download_queue_thread, this, random_manager, i));
+                if (COMPRESS && seeder_scheduler.supports_codecs(seed_manager)) {
+                    try {
+                        results = seed_manager.get_encoded_slices(hash_to_download, from, count,
+                                SliceCodec.SUPPORTED_CODECS);
+                    } catch (ServerException e) {
+                        if (!(e.getCause() instanceof UnmarshalException)) {
+                            throw e;
+                        }
+                        // The seeder runs a version without compression
+                        seeder_scheduler.mark_without_codecs(seed_manager);
+                    }
+                }
+                DataClient data_client = null;
+                if (results == null) {
+                    data_client = DataClient.of(seed_manager, seeder_scheduler.host_of(seed_manager));
+                }
+                if (data_client != null) {
+                    try {
+                        results = data_client.get_slices(hash_to_download, from, count);
+                    } catch (IOException e) {
+                        logger.info("Data plane request failed, asking through RMI: " + e.getMessage());
+                    }
+                }
+                if (results == null && count == 1) {
+                    results = new ByteSlice[]{seed_manager.get_slice(hash_to_download, from)};
+                } else if (results == null) {
+                    results = seed_manager.get_slices(hash_to_download, from, count);
                 }
-                download_queue_thread.add_threads(threads);
-                logger.info("Threads added");
             } catch (Exception e) {
-                logger.severe("ERROR WHILE DOWNLOADING " + hash_to_download);
+                seeder_scheduler.record_failure(seed_manager);
+                throw e;
             }
+            long bytes = 0;
+            for (ByteSlice slice : results) {
+                bytes += slice.getBytes_written();
+            }
+            seeder_scheduler.record_success(seed_manager, System.nanoTime() - start, bytes);
+            manager.getUpload_slots().record_received(seeder_scheduler.host_of(seed_manager), bytes);
+            return results;
         }
 
         /**
-         * Creates the array where the bytes will be saved
+         * Check a downloaded slice against the Merkle tree, remembering the seeder if the slice is corrupted
          *
-         * @throws Exception If the remote call to the manager fails
+         * @param seed_manager The manager of the seeder that sent the slice
+         * @param slice_index  The index of the slice
+         * @param slice        The downloaded slice, released if it is corrupted
+         * @return True if the slice is valid or there is no tree to check it against
          */
-        public void create_slice_array() throws Exception {
-            this.slices_array = new ByteSlice[this.seed_managers.get(0).getSlicesNeeded(hash_to_download)];
-            logger.info("Created slice array");
+        boolean verify(Manager seed_manager, int slice_index, ByteSlice slice) {
+            if (tree == null || tree.verify(slice_index, slice.getBytes(), slice.getBytes_written())) {
+                return true;
+            }
+            logger.warning("Slice " + slice_index + " of " + hash_to_download + " failed verification");
+            seeder_scheduler.record_failure(seed_manager);
+            rejected.computeIfAbsent(slice_index, index -> ConcurrentHashMap.newKeySet()).add(seed_manager);
+            slice.release();
+            return false;
         }
 
         /**
-         * Write the bytes in a file, and if it's a chunk, rebuild if possible
+         * Get the Merkle tree of the file from the seeders
+         * Up to three seeders are asked, and the tree most of them agree on is used, so a seeder with
+         * a damaged copy of the file can't make the good slices of the others be rejected
+         * A single seeder, or seeders that disagree, still decide the tree, so it is not a proof of the content
+         *
+         * @return The tree, or null if no seeder sent a valid one
          */
-        public void write_file() {
-            logger.info("Starting to write " + this.hash_to_download);
-            try (FileOutputStream stream = new FileOutputStream(file_location)) {
-                int s_ind = 0;
-                for (ByteSlice byteSlice : this.slices_array) {
-                    int i_ind = 0;
-                    while (byteSlice == null) {
-                        Manager m = seed_managers.get(i_ind);
-                        DownloadThread dthread = new DownloadThread(download_queue_thread, this, m, s_ind);
-                        dthread.start();
-                        dthread.join();
-                        byteSlice = this.slices_array[s_ind];
-                        i_ind += 1;
+        MerkleTree fetch_tree() {
+            List<MerkleTree> trees = new ArrayList<>();
+            for (Manager seed_manager : seed_managers) {
+                if (trees.size() == 3) {
+                    break;
+                }
+                try {
+                    MerkleTree candidate = seed_manager.get_merkle_tree(hash_to_download);
+                    if (candidate != null && candidate.is_consistent() && candidate.getSlices() == slices_total) {
+                        trees.add(candidate);
                     }
-                    byte[] bytes = byteSlice.getBytes();
-                    for (int j = 0; j < byteSlice.getBytes_written(); j++) {
-                        stream.write(bytes[j]);
+                } catch (Exception e) {
+                    logger.info("A seeder of " + hash_to_download + " could not send its Merkle tree");
+                }
+            }
+            MerkleTree best = null;
+            int best_votes = 0;
+            for (MerkleTree candidate : trees) {
+                int votes = 0;
+                for (MerkleTree other : trees) {
+                    if (candidate.same_root(other)) {
+                        votes++;
                     }
-                    s_ind += 1;
                 }
-            } catch (RemoteException e) {
-                logger.severe("A download thread for " + hash_to_download + "failed");
-            } catch (IOException e) {
-                logger.severe("IOException while writing " + this.hash_to_download);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                if (votes > best_votes) {
+                    best = candidate;
+                    best_votes = votes;
+                }
             }
-            logger.severe("File " + hash_to_download + " downloaded!");
-            if (this.friend_hashes.size() != 1) {
-                // Check for rebuildability and apply if possible
-                this.check_rebuildability();
+            return best;
+        }
+
+        /**
+         * Completion callback of the pipelines, the file is written when the last one stops
+         */
+        synchronized void pipeline_finished() {
+            pipelines_running--;
+            this.notifyAll();
+        }
+
+        /**
+         * Creates the file where the slices will be written, with the space of all of them preallocated
+         *
+         * @throws Exception If the remote call to the manager or creating the file fails
+         */
+        public void create_slice_array() throws Exception {
+            this.slices_total = this.seed_managers.get(0).getSlicesNeeded(hash_to_download);
+            boolean resumable;
+            if (this.friend_hashes.size() > 1) {
+                // Chunks are written at their offset of the whole file, every chunk download shares it
+                this.assembly = ChunkAssembly.open(destination(), file_hash, friend_hashes, manager);
+                resumable = !assembly.is_new();
+            } else {
+                resumable = Files.exists(part_path());
+            }
+            if (!resumable) {
+                // Without its .part file a journal is worthless
+                Files.deleteIfExists(SliceJournal.journal_path(Paths.get(file_location)));
+            }
+            this.journal = SliceJournal.open(Paths.get(file_location), hash_to_download, file_hash, original_name,
+                    friend_hashes, slices_total);
+            this.completed = journal.completed();
+            this.file_size = journal.getFile_size();
+            if (completed.cardinality() > 0) {
+                logger.warning("Resuming " + hash_to_download + " with " + completed.cardinality() + "/"
+                        + slices_total + " slices");
             }
+            this.tree = fetch_tree();
+            if (tree == null) {
+                logger.warning("No Merkle tree for " + hash_to_download + ", its slices can't be checked before it is "
+                        + "complete");
+            }
+            this.pipelines_running = this.seed_managers.size();
+            if (this.assembly != null) {
+                this.chunk_index = friend_hashes.indexOf(hash_to_download);
+                this.base = assembly.offset_of(chunk_index);
+                this.target = assembly.getTarget();
+            } else {
+                RandomAccessFile file = new RandomAccessFile(part_path().toFile(), "rw");
+                file.setLength((long) this.slices_total * this.manager.getSlice_size());
+                this.target = file.getChannel();
+            }
+            if (tree != null && completed.cardinality() > 0) {
+                check_restored();
+            }
+            if (this.assembly != null) {
+                assembly.restore(chunk_index, completed);
+            }
+            logger.info("Created slice array");
         }
 
         /**
-         * If a file is a chunk, check if it's possible to rebuild the whole file
-         * If it is possible, rebuild the whole file and delete remaining chunks
+         * Check the slices the journal has as written against the Merkle tree, and download again the ones that fail
+         * Neither the slices nor the journal are forced to the disk, so after a crash of the OS the journal can have
+         * slices whose bytes never reached it
+         *
+         * @throws IOException If reading the .part file fails
          */
-        public void check_rebuildability() {
-            this.manager.list_filtered_files("name:" + this.original_name);
-            for (String hash : this.friend_hashes) {
-                boolean found = false;
-                for (Content file : this.manager.getContents()) {
-                    if (hash.equals(file.getHash())) {
-                        found = true;
-                        break;
+        void check_restored() throws IOException {
+            int slice_size = this.manager.getSlice_size();
+            ByteBuffer buffer = ByteBuffer.allocate(slice_size);
+            int dropped = 0;
+            for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+                long offset = (long) i * slice_size;
+                // The size of the last slice is only known from the size of the file in the journal
+                long length = i == slices_total - 1 ? file_size - offset : slice_size;
+                boolean valid = length > 0 && length <= slice_size;
+                if (valid) {
+                    buffer.clear();
+                    buffer.limit((int) length);
+                    int read = 0;
+                    while (buffer.hasRemaining() && read >= 0) {
+                        read = target.read(buffer, base + offset + buffer.position());
                     }
+                    valid = !buffer.hasRemaining() && tree.verify(i, buffer.array(), (int) length);
                 }
-                if (!found) {
-                    return;
+                if (!valid) {
+                    completed.clear(i);
+                    journal.unmark(i);
+                    dropped++;
                 }
             }
-            File folder = new File(this.manager.getFolder_route());
-            List<File> files = new ArrayList<>(List.of(Objects.requireNonNull(
-                    folder.listFiles(file -> file.getName().endsWith(original_name) &&
-                            !file.getName().startsWith(original_name)))));
-            if (files.size() < friend_hashes.size()) {
+            if (dropped > 0) {
+                logger.warning(dropped + " slices of " + hash_to_download + " written before the restart are not valid, "
+                        + "they will be downloaded again");
+            }
+        }
+
+        /**
+         * Get the hidden file where the slices are written until the file is complete
+         * The chunks of a file are all written in the .part file of the whole file
+         *
+         * @return The path of the .part file
+         */
+        Path part_path() {
+            if (this.friend_hashes.size() > 1) {
+                return ChunkAssembly.part_path(destination());
+            }
+            Path location = Paths.get(file_location);
+            return location.resolveSibling("." + location.getFileName() + ".part");
+        }
+
+        /**
+         * Get the location of the whole file a chunk belongs to
+         *
+         * @return The path of the whole file
+         */
+        Path destination() {
+            return Paths.get(this.manager.getFolder_route(), this.original_name);
+        }
+
+        /**
+         * Write a downloaded slice at its offset of the file, its buffer can be released right after
+         *
+         * @param slice_index The index of the slice
+         * @param slice       The downloaded slice
+         * @throws IOException If writing fails
+         */
+        public void store_slice(int slice_index, ByteSlice slice) throws IOException {
+            if (is_completed(slice_index)) {
+                // Another seeder answered first
+                slice.release();
                 return;
             }
-            files.sort(Comparator.comparing(File::getName));
-            logger.info("Joining the files");
-            String file_location = this.manager.getFolder_route() + "/" + this.original_name;
+            ByteBuffer buffer = ByteBuffer.wrap(slice.getBytes(), 0, slice.getBytes_written());
+            long position = base + (long) slice_index * this.manager.getSlice_size();
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            if (assembly != null) {
+                assembly.slice_written(chunk_index, slice_index, slice.getBytes(), slice.getBytes_written());
+            }
+            slice.release();
+            synchronized (this) {
+                if (completed.get(slice_index)) {
+                    return;
+                }
+                if (slice_index == slices_total - 1) {
+                    file_size = position - base;
+                    journal.setFile_size(file_size);
+                }
+                completed.set(slice_index);
+                journal.mark(slice_index);
+            }
+        }
+
+        /**
+         * Finish the file: fetch the slices that are still missing, trim it to its real size and move it
+         * to its location, or if it's a chunk, tell its assembly it is in place
+         */
+        public void write_file() {
+            logger.info("Starting to write " + this.hash_to_download);
             try {
-                FileSlicer.mergeFilesOriginal(files, new File(file_location));
-            } catch (IOException e) {
-                logger.warning("ERROR while joining the files; Try merging manually");
-            } finally {
-                for (File f : files) {
-                    if (!f.delete()) {
-                        logger.info("ERROR deleting file chunk");
+                for (int s_ind = 0; s_ind < this.slices_total; s_ind++) {
+                    if (is_completed(s_ind)) {
+                        continue;
+                    }
+                    for (Manager m : seeder_scheduler.rank(seed_managers)) {
+                        if (is_completed(s_ind)) {
+                            break;
+                        }
+                        if (is_rejected(m, new int[]{s_ind, 1})) {
+                            continue;
+                        }
+                        ByteSlice slice = null;
+                        try {
+                            slice = request_slices(m, s_ind, 1)[0];
+                        } catch (Exception e) {
+                            logger.info("Retry of slice " + s_ind + " of " + hash_to_download + " failed");
+                        }
+                        if (slice != null && verify(m, s_ind, slice)) {
+                            store_slice(s_ind, slice);
+                        }
+                    }
+                    if (!is_completed(s_ind)) {
+                        logger.severe("A download thread for " + hash_to_download + "failed");
+                        if (assembly == null) {
+                            target.close();
+                        }
+                        return;
                     }
                 }
+                // The tree only comes from the seeders, the hash is what was asked for
+                if (!matches_hash()) {
+                    logger.severe("Download of " + hash_to_download + " does not match its hash, it was dropped");
+                    journal.delete();
+                    if (assembly == null) {
+                        target.close();
+                        Files.deleteIfExists(part_path());
+                    }
+                    return;
+                }
+                if (assembly != null) {
+                    // The chunk is already in place, the file is complete when every chunk is
+                    assembly.chunk_finished(chunk_index, file_size, journal);
+                } else {
+                    target.truncate(file_size);
+                    target.close();
+                    Files.move(part_path(), Paths.get(file_location), StandardCopyOption.REPLACE_EXISTING);
+                    journal.delete();
+                    // The file was just hashed, so it is added without hashing it again
+                    this.manager.add_verified_file(hash_to_download, new File(file_location));
+                }
+            } catch (IOException e) {
+                logger.severe("IOException while writing " + this.hash_to_download);
+                return;
             }
+            logger.severe("File " + hash_to_download + " downloaded!");
         }
 
         /**
-         * Check if the thread has finished, which means that all downloads have finished
+         * Hash the downloaded bytes, the Merkle tree the slices were checked against is the one of the seeders
+         * Without it a single bad seeder could have its data added under the hash that was asked for
          *
-         * @return true if all downloads have been completed
+         * @return True if their CRC32 is the hash that was asked for
+         * @throws IOException If reading the .part file fails
          */
-        public boolean isFinished() {
-            for (ByteSlice slice : slices_array) {
-                if (slice == null) {
-                    return false;
-                }
-            }
-            this.write_file();
-            return true;
+        boolean matches_hash() throws IOException {
+            return HashCalculator.getRangeHash(target, base, file_size).equals(hash_to_download);
+        }
+
+        /**
+         * Check if a slice has already been written
+         *
+         * @param slice_index The index of the slice
+         * @return True if it has been written
+         */
+        synchronized boolean is_completed(int slice_index) {
+            return completed.get(slice_index);
         }
 
         /**
@@ -839,64 +1428,164 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
          *
          * @return a string of the style hash:threads_finished/total_threads
          */
-        public String get_progress() {
-            int completed = 0;
-            for (ByteSlice slice : slices_array) {
-                if (slice != null) {
-                    completed += 1;
-                }
+        public synchronized String get_progress() {
+            if (completed == null) {
+                return hash_to_download + ":starting";
             }
-            return hash_to_download + ":" + completed + "/" + slices_array.length;
+            return hash_to_download + ":" + completed.cardinality() + "/" + slices_total;
         }
     }
 
     /**
-     * A thread that manages a download
+     * A task that manages the download of a file from one seeder
+     * It keeps a window of batch requests in flight against the seeder, and takes a new batch as each one completes
+     * The window grows by one after a full window of successes and is halved on every error
+     * When there are no batches left it duplicates the slow requests of other seeders, see FileQueueThread.next_batch
      */
     public static class DownloadThread extends MyThread {
-        final GlobalQueueThread download_queue_thread;
+        /**
+         * Threads that make the remote calls of every pipeline, reused between requests
+         */
+        static final ExecutorService request_executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "slice-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /**
+         * Window every pipeline starts with
+         */
+        static final int INITIAL_WINDOW = Integer.getInteger("duchnet.window", 4);
+        /**
+         * Maximum window of a pipeline
+         */
+        static final int MAX_WINDOW = Integer.getInteger("duchnet.window.max", 16);
+        /**
+         * Consecutive errors with a window of 1 after which the seeder is given up
+         */
+        static final int MAX_ERRORS = 3;
+        /**
+         * Milliseconds an idle pipeline waits before looking again for requests of other seeders to duplicate
+         */
+        static final int HEDGE_POLL_MILLIS = 20;
         final FileQueueThread file_thread;
         final Manager seed_manager;
-        int slice_index;
-        boolean finished;
+        int window;
+        int in_flight;
+        int successes;
+        int errors;
 
         /**
-         * Constructor used to create a download thread
+         * Constructor used to create a download pipeline
          *
-         * @param download_thread the thread that manages downloads
-         * @param file_thread     the thread that manages the file that we want to download
-         * @param seed_manager    one of the managers that owns the file
-         * @param slice_index     the 1 MB slice we will request from the seed manager
+         * @param file_thread  the thread that manages the file that we want to download
+         * @param seed_manager one of the managers that owns the file
          */
-        public DownloadThread(GlobalQueueThread download_thread, FileQueueThread file_thread, Manager seed_manager, int slice_index) {
-            this.download_queue_thread = download_thread;
+        public DownloadThread(FileQueueThread file_thread, Manager seed_manager) {
             this.seed_manager = seed_manager;
             this.file_thread = file_thread;
-            this.slice_index = slice_index;
-            this.finished = false;
+            this.window = Math.min(INITIAL_WINDOW, MAX_WINDOW);
+            this.in_flight = 0;
         }
 
         /**
-         * Run method of the thread, requests the data from the seed manager and writes it to the file
-         * that manages the whole download
+         * Run method of the thread, keeps the window full of requests until there are no batches left
+         * or the seeder keeps failing, and waits for the requests in flight before finishing
          */
         @Override
         public void run() {
-            logger.info("Starting download thread " + this.file_thread.hash_to_download + " " + slice_index);
+            logger.info("Starting download pipeline " + this.file_thread.hash_to_download);
             try {
-                ByteSlice result = seed_manager.get_slice(file_thread.hash_to_download, slice_index);
-                file_thread.slices_array[slice_index] = result;
-            } catch (Exception e) {
-                file_thread.slices_array[slice_index] = null;
+                while (true) {
+                    synchronized (this) {
+                        while (in_flight >= window) {
+                            this.wait();
+                        }
+                        if (errors >= MAX_ERRORS) {
+                            logger.warning("Giving up a seeder of " + this.file_thread.hash_to_download);
+                            break;
+                        }
+                    }
+                    // The seeder may be busy with the requests of other downloads
+                    file_thread.seeder_scheduler.acquire(seed_manager);
+                    int[] batch = file_thread.next_batch(seed_manager);
+                    if (batch == null) {
+                        file_thread.seeder_scheduler.release(seed_manager);
+                        if (file_thread.is_finished()) {
+                            break;
+                        }
+                        if (file_thread.has_duplicate_work(seed_manager)) {
+                            // Wait for the endgame or for a request of another seeder slow enough to be hedged
+                            file_thread.await_work(HEDGE_POLL_MILLIS);
+                            continue;
+                        }
+                        synchronized (this) {
+                            while (in_flight > 0) {
+                                this.wait();
+                            }
+                        }
+                        // Failed requests may have put batches back
+                        file_thread.seeder_scheduler.acquire(seed_manager);
+                        batch = file_thread.next_batch(seed_manager);
+                        if (batch == null) {
+                            file_thread.seeder_scheduler.release(seed_manager);
+                            break;
+                        }
+                    }
+                    synchronized (this) {
+                        in_flight++;
+                    }
+                    int[] next = batch;
+                    request_executor.execute(() -> request(next));
+                }
+                // Once the file is complete the requests still in flight are abandoned, their answers are discarded
+                synchronized (this) {
+                    while (in_flight > 0 && !file_thread.is_finished()) {
+                        this.wait(HEDGE_POLL_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.severe("InterruptedException at download pipeline of " + this.file_thread.hash_to_download);
             }
-            logger.info("Thread " + this.file_thread.hash_to_download + " " + slice_index + " is done!");
-            this.file_thread.file_queue_thread.alert(this);
-            this.download_queue_thread.alert(this);
-            finished = true;
+            logger.info("Pipeline of " + this.file_thread.hash_to_download + " is done!");
+            this.file_thread.pipeline_finished();
         }
 
-        public boolean isFinished() {
-            return finished;
+        /**
+         * Make one request of the window and resize the window with its result
+         *
+         * @param batch The index of the first slice of the batch and the number of slices
+         */
+        private void request(int[] batch) {
+            boolean success = false;
+            long start = System.nanoTime();
+            try {
+                file_thread.fetch(seed_manager, batch);
+                success = true;
+            } catch (Exception e) {
+                logger.info("Batch " + this.file_thread.hash_to_download + " " + batch[0] + " failed");
+                file_thread.retry_batch(batch);
+            } finally {
+                file_thread.seeder_scheduler.release(seed_manager);
+                file_thread.finish_request(batch, seed_manager, System.nanoTime() - start, success);
+            }
+            synchronized (this) {
+                in_flight--;
+                if (success) {
+                    errors = 0;
+                    successes++;
+                    if (successes >= window && window < MAX_WINDOW) {
+                        window++;
+                        successes = 0;
+                    }
+                } else {
+                    successes = 0;
+                    if (window == 1) {
+                        errors++;
+                    }
+                    window = Math.max(1, window / 2);
+                }
+                this.notifyAll();
+            }
         }
 
         @Override
@@ -904,10 +1593,8 @@ public class PeerImp extends UnicastRemoteObject implements Peer {
         }
 
         @Override
-        public String get_progress() {
-            return file_thread.hash_to_download;
+        public synchronized String get_progress() {
+            return file_thread.hash_to_download + " window=" + window + " in_flight=" + in_flight;
         }
     }
 }
-
-
@@ -70,7 +70,7 @@ public class PeerProgram {
             port = 1099;
         }
         try {
-            Registry registry = LocateRegistry.getRegistry(port);
+            Registry registry = LocateRegistry.getRegistry(null, port, TunedSocketFactory.for_registry());
             registry.list();
             // The above call will throw an exception
             // if the registry does not already exist
@@ -78,7 +78,8 @@ public class PeerProgram {
         } catch (RemoteException ex) {
             // No valid registry at that port.
             System.out.println("RMI registry cannot be located ");
-            Registry registry = LocateRegistry.createRegistry(port);
+            Registry registry = LocateRegistry.createRegistry(port, TunedSocketFactory.for_registry(),
+                    TunedSocketFactory.for_registry());
             System.out.println("RMI registry created at port " + port);
             return registry;
         }
@@ -0,0 +1,142 @@
+package peer;
+
+/**
+ * Performance of a seeder measured from the slice requests made to it
+ * Latency, throughput and error rate are exponentially weighted moving averages, so recent requests
+ * count more than old ones and a peer that slows down or dies is noticed after a few requests
+ */
+public class PeerStats {
+    /**
+     * Weight of every new sample in the moving averages
+     */
+    private static final double ALPHA = 0.2;
+    /**
+     * Times the round trip that the transfer of a batch should take, so round trips are a small part of the time
+     */
+    private static final int BATCH_TRANSFER_RATIO = 4;
+    /**
+     * Lowest success rate used when scoring, so a failing peer gets a high score instead of an infinite one
+     */
+    private static final double MIN_SUCCESS_RATE = 0.05;
+    /**
+     * Average time of a request, in nanoseconds
+     */
+    private double latency_nanos;
+    /**
+     * Average bytes per second received
+     */
+    private double bytes_per_second;
+    /**
+     * Average fraction of requests that failed
+     */
+    private double error_rate;
+    /**
+     * Time of the last request that succeeded, in milliseconds since the epoch, 0 if none did
+     */
+    private long last_seen;
+    /**
+     * Number of requests recorded
+     */
+    private long requests;
+    /**
+     * Sums of the weights, the bytes, the nanoseconds and their products of the successful requests, every old
+     * request weighted down like in the moving averages, used to fit the time of a request against its size
+     */
+    private double weight_sum;
+    private double bytes_sum;
+    private double nanos_sum;
+    private double bytes_squared_sum;
+    private double bytes_nanos_sum;
+
+    /**
+     * Record a request that succeeded
+     *
+     * @param nanos Time the request took
+     * @param bytes Bytes received
+     */
+    public synchronized void record_success(long nanos, long bytes) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        if (requests == 0) {
+            latency_nanos = nanos;
+            bytes_per_second = bytes / seconds;
+        } else {
+            latency_nanos += ALPHA * (nanos - latency_nanos);
+            bytes_per_second += ALPHA * (bytes / seconds - bytes_per_second);
+        }
+        error_rate -= ALPHA * error_rate;
+        weight_sum += ALPHA * (1 - weight_sum);
+        bytes_sum += ALPHA * (bytes - bytes_sum);
+        nanos_sum += ALPHA * (nanos - nanos_sum);
+        bytes_squared_sum += ALPHA * ((double) bytes * bytes - bytes_squared_sum);
+        bytes_nanos_sum += ALPHA * ((double) bytes * nanos - bytes_nanos_sum);
+        last_seen = System.currentTimeMillis();
+        requests++;
+    }
+
+    /**
+     * Record a request that failed or returned corrupted data
+     */
+    public synchronized void record_failure() {
+        error_rate += ALPHA * (1 - error_rate);
+        requests++;
+    }
+
+    /**
+     * Estimate the seconds a request for a slice would take, the lower the better
+     * Peers that have not been asked yet get 0, so they are tried before the known ones
+     *
+     * @param slice_size  Bytes of a slice
+     * @param outstanding Requests already waiting for this peer
+     * @return The estimated seconds
+     */
+    public synchronized double score(int slice_size, int outstanding) {
+        if (requests == 0) {
+            return 0;
+        }
+        double seconds = latency_nanos / 1e9;
+        if (bytes_per_second > 0) {
+            seconds += slice_size / bytes_per_second;
+        } else if (last_seen == 0) {
+            // It never answered, any time is a guess
+            seconds += 1;
+        }
+        return seconds * (1 + outstanding) / Math.max(MIN_SUCCESS_RATE, 1 - error_rate);
+    }
+
+    /**
+     * Choose how many slices to ask for in the next request
+     * The time of a request is fitted as a round trip plus its bytes at the bandwidth of the link, by weighted least
+     * squares over the recent requests, and the batch makes the transfer BATCH_TRANSFER_RATIO times the round trip
+     * While the recent requests have all been about the same size the two can't be told apart, so a batch twice
+     * that size is tried
+     *
+     * @param slice_size Bytes of a slice
+     * @param max_batch  Maximum number of slices of a request
+     * @return The number of slices, 1 for a peer that has not answered yet
+     */
+    public synchronized int batch_size(int slice_size, int max_batch) {
+        if (weight_sum == 0) {
+            return 1;
+        }
+        double mean_bytes = bytes_sum / weight_sum;
+        double mean_nanos = nanos_sum / weight_sum;
+        double bytes_variance = bytes_squared_sum / weight_sum - mean_bytes * mean_bytes;
+        double covariance = bytes_nanos_sum / weight_sum - mean_bytes * mean_nanos;
+        double batch;
+        if (bytes_variance <= 0.01 * mean_bytes * mean_bytes || covariance <= 0) {
+            batch = 2 * Math.max(1, Math.round(mean_bytes / slice_size));
+        } else {
+            double nanos_per_byte = covariance / bytes_variance;
+            double round_trip_nanos = Math.max(0, mean_nanos - nanos_per_byte * mean_bytes);
+            batch = Math.ceil(BATCH_TRANSFER_RATIO * round_trip_nanos / (nanos_per_byte * slice_size));
+        }
+        return (int) Math.max(1, Math.min(max_batch, batch));
+    }
+
+    @Override
+    public synchronized String toString() {
+        String seen = last_seen == 0 ? "never" : (System.currentTimeMillis() - last_seen) / 1000 + "s ago";
+        return String.format("latency=%.1fms speed=%.1fMB/s errors=%.0f%% seen=%s",
+                latency_nanos / 1e6, bytes_per_second / (1024 * 1024), error_rate * 100, seen);
+    }
+}
@@ -0,0 +1,98 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reads only the requested slice of a file, at slice_index * slice_size, with a positional FileChannel read
+ * The channels come from a ChannelPool and the read buffers are reused between requests
+ */
+public class PositionalSliceReader implements SliceReader {
+    /**
+     * The size of a slice in bytes
+     */
+    private final int slice_size;
+    /**
+     * Open channels of the files being served
+     */
+    private final ChannelPool channel_pool;
+    /**
+     * Direct buffers of slice_size bytes that are not being used right now
+     */
+    private final ArrayDeque<ByteBuffer> buffer_pool;
+    /**
+     * Maximum number of idle buffers kept in buffer_pool
+     */
+    private final int max_buffers;
+
+    /**
+     * Constructor for PositionalSliceReader
+     *
+     * @param slice_size   the size of a slice in bytes
+     * @param max_channels maximum number of files kept open at once
+     * @param max_buffers  maximum number of idle read buffers kept
+     */
+    public PositionalSliceReader(int slice_size, int max_channels, int max_buffers) {
+        this.slice_size = slice_size;
+        this.channel_pool = new ChannelPool(max_channels);
+        this.buffer_pool = new ArrayDeque<>();
+        this.max_buffers = max_buffers;
+    }
+
+    @Override
+    public ByteSlice read_slice(String hash, String route, int slice_index) throws IOException {
+        ChannelPool.PooledChannel pooled = channel_pool.acquire(hash, route);
+        ByteBuffer buffer = take_buffer();
+        try {
+            long position = (long) slice_index * slice_size;
+            while (buffer.hasRemaining()) {
+                int read = pooled.getChannel().read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new ByteSlice(bytes, bytes.length);
+        } finally {
+            give_buffer(buffer);
+            channel_pool.release(pooled);
+        }
+    }
+
+    @Override
+    public void forget(String hash) {
+        channel_pool.remove(hash);
+    }
+
+    /**
+     * Take an idle buffer from the pool, or allocate a new one if there are none
+     *
+     * @return A cleared buffer of slice_size bytes
+     */
+    private ByteBuffer take_buffer() {
+        synchronized (buffer_pool) {
+            ByteBuffer buffer = buffer_pool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(slice_size);
+    }
+
+    /**
+     * Give a buffer back to the pool
+     *
+     * @param buffer The buffer that is not used anymore
+     */
+    private void give_buffer(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (buffer_pool) {
+            if (buffer_pool.size() < max_buffers) {
+                buffer_pool.push(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package peer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects peers reading a file sequentially and loads the next slices into the cache in the background,
+ * so they are already in memory when they are requested
+ * The read-ahead depth of every stream grows while the prefetched slices are hits and shrinks when they are not
+ */
+public class ReadAheadPrefetcher {
+    /**
+     * Maximum number of (peer, hash) streams that are tracked at once
+     */
+    private static final int MAX_STREAMS = 256;
+    /**
+     * Used to load a slice into the cache
+     */
+    private final Loader loader;
+    /**
+     * Maximum number of slices read ahead of a request
+     */
+    private final int max_depth;
+    /**
+     * Threads loading the slices, extra work is dropped when they can't keep up
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * Streams being tracked in access order, keyed by peer|hash
+     */
+    private final LinkedHashMap<String, Stream> streams;
+
+    /**
+     * Constructor for ReadAheadPrefetcher
+     *
+     * @param loader    used to load a slice into the cache
+     * @param max_depth maximum number of slices read ahead of a request
+     * @param threads   number of background threads loading slices
+     */
+    public ReadAheadPrefetcher(Loader loader, int max_depth, int threads) {
+        this.loader = loader;
+        this.max_depth = max_depth;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(max_depth * 4), runnable -> {
+            Thread thread = new Thread(runnable, "prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.streams = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+                return size() > MAX_STREAMS;
+            }
+        };
+    }
+
+    /**
+     * Register a slice request, and read ahead if the peer is reading the file sequentially
+     *
+     * @param peer         Who is requesting the slice
+     * @param hash         The hash of the file
+     * @param route        The local route of the file
+     * @param slice_index  The index of the requested slice
+     * @param slices_total The number of slices of the file, or the end of the range being read
+     * @param hit          True if the slice was found in the cache
+     */
+    public void on_request(String peer, String hash, String route, int slice_index, int slices_total, boolean hit) {
+        int from;
+        int to;
+        synchronized (streams) {
+            String key = peer + "|" + hash;
+            Stream stream = streams.get(key);
+            if (stream == null) {
+                streams.put(key, new Stream(slice_index));
+                return;
+            }
+            if (slice_index <= stream.prefetched_until) {
+                if (hit) {
+                    stream.depth = Math.min(max_depth, stream.depth + 1);
+                } else {
+                    stream.depth = Math.max(1, stream.depth / 2);
+                }
+            }
+            boolean sequential = slice_index > stream.last_index && slice_index - stream.last_index <= stream.depth + 1;
+            stream.last_index = Math.max(stream.last_index, slice_index);
+            if (!sequential) {
+                return;
+            }
+            from = Math.max(slice_index, stream.prefetched_until) + 1;
+            to = Math.min(slices_total - 1, slice_index + stream.depth);
+            stream.prefetched_until = Math.max(stream.prefetched_until, to);
+        }
+        for (int i = from; i <= to; i++) {
+            int index = i;
+            executor.execute(() -> {
+                try {
+                    loader.load(hash, route, index);
+                } catch (Exception e) {
+                    PeerImp.logger.info("Prefetch of " + hash + " " + index + " failed");
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads a slice into the cache
+     */
+    public interface Loader {
+        void load(String hash, String route, int slice_index) throws Exception;
+    }
+
+    /**
+     * Access pattern of one peer over one file
+     */
+    private static class Stream {
+        int last_index;
+        int prefetched_until;
+        int depth;
+
+        Stream(int slice_index) {
+            this.last_index = slice_index;
+            this.prefetched_until = slice_index;
+            this.depth = 2;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package peer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides which seeders every download uses
+ * It knows which chunks every seeder holds, so the chunks held by the fewest seeders are downloaded first,
+ * and how many requests every seeder has outstanding across all downloads, so no seeder gets more than its share
+ * while the others sit idle
+ * It also keeps the performance of every peer for the whole session, so slow or dead peers are chosen last
+ */
+public class SeederScheduler {
+    /**
+     * Maximum number of requests outstanding against a single seeder, adding up all the downloads
+     */
+    static final int MAX_REQUESTS_PER_SEEDER = Integer.getInteger("duchnet.seeder.requests", 16);
+    /**
+     * Free request slots of every seeder
+     */
+    private final ConcurrentHashMap<Manager, Semaphore> slots = new ConcurrentHashMap<>();
+    /**
+     * Performance of every peer, keyed by PeerInfo.toString()
+     */
+    private final ConcurrentHashMap<String, PeerStats> stats = new ConcurrentHashMap<>();
+    /**
+     * PeerInfo.toString() of the peer of every known manager
+     */
+    private final ConcurrentHashMap<Manager, String> peers = new ConcurrentHashMap<>();
+    /**
+     * Seeders that don't know how to send compressed slices
+     */
+    private final Set<Manager> without_codecs = ConcurrentHashMap.newKeySet();
+    /**
+     * Bytes of a slice, used to estimate how long a request takes
+     */
+    private final int slice_size;
+
+    /**
+     * Constructor for SeederScheduler
+     *
+     * @param slice_size Bytes of a slice
+     */
+    public SeederScheduler(int slice_size) {
+        this.slice_size = slice_size;
+    }
+
+    /**
+     * Tell which peer a manager belongs to, so its performance is recorded under its PeerInfo
+     *
+     * @param info         The PeerInfo of the peer
+     * @param seed_manager The manager of the peer
+     */
+    public void register(PeerInfo info, Manager seed_manager) {
+        peers.put(seed_manager, info.toString());
+    }
+
+    /**
+     * Check if a seeder may be asked for compressed slices
+     *
+     * @param seed_manager The manager of the seeder
+     * @return False if the seeder is known not to support them
+     */
+    public boolean supports_codecs(Manager seed_manager) {
+        return !without_codecs.contains(seed_manager);
+    }
+
+    /**
+     * Remember that a seeder doesn't support compressed slices, it will be asked for plain ones from now on
+     *
+     * @param seed_manager The manager of the seeder
+     */
+    public void mark_without_codecs(Manager seed_manager) {
+        without_codecs.add(seed_manager);
+    }
+
+    /**
+     * Get the host of the peer of a manager
+     *
+     * @param seed_manager The manager
+     * @return The IP of the peer, or null if the manager was never registered
+     */
+    public String host_of(Manager seed_manager) {
+        String peer = peers.get(seed_manager);
+        return peer == null ? null : PeerInfo.fromString(peer).ip;
+    }
+
+    /**
+     * Get the performance of the peer of a manager
+     *
+     * @param seed_manager The manager
+     * @return Its PeerStats, created empty the first time
+     */
+    private PeerStats stats_of(Manager seed_manager) {
+        String peer = peers.getOrDefault(seed_manager, seed_manager.toString());
+        return stats.computeIfAbsent(peer, key -> new PeerStats());
+    }
+
+    /**
+     * Record a request to a seeder that succeeded
+     *
+     * @param seed_manager The manager of the seeder
+     * @param nanos        Time the request took
+     * @param bytes        Bytes received
+     */
+    public void record_success(Manager seed_manager, long nanos, long bytes) {
+        stats_of(seed_manager).record_success(nanos, bytes);
+    }
+
+    /**
+     * Record a request to a seeder that failed or returned corrupted data
+     *
+     * @param seed_manager The manager of the seeder
+     */
+    public void record_failure(Manager seed_manager) {
+        stats_of(seed_manager).record_failure();
+    }
+
+    /**
+     * Choose how many slices to ask a seeder for in the next request, from the times of its last requests
+     *
+     * @param seed_manager The manager of the seeder
+     * @param max_batch    Maximum number of slices of a request
+     * @return The number of slices
+     */
+    public int batch_size(Manager seed_manager, int max_batch) {
+        return stats_of(seed_manager).batch_size(slice_size, max_batch);
+    }
+
+    /**
+     * Estimate how long a new request to a seeder would take, counting the requests it already has
+     *
+     * @param seed_manager The manager of the seeder
+     * @return The estimated seconds, the lower the better
+     */
+    public double score(Manager seed_manager) {
+        return stats_of(seed_manager).score(slice_size, outstanding(seed_manager));
+    }
+
+    /**
+     * Take a request slot of a seeder, waiting until one is free
+     *
+     * @param seed_manager The manager of the seeder
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void acquire(Manager seed_manager) throws InterruptedException {
+        slots_of(seed_manager).acquire();
+    }
+
+    /**
+     * Give back a request slot of a seeder taken with acquire()
+     *
+     * @param seed_manager The manager of the seeder
+     */
+    public void release(Manager seed_manager) {
+        slots_of(seed_manager).release();
+    }
+
+    /**
+     * Get the number of requests outstanding against a seeder
+     *
+     * @param seed_manager The manager of the seeder
+     * @return The number of requests
+     */
+    public int outstanding(Manager seed_manager) {
+        return MAX_REQUESTS_PER_SEEDER - slots_of(seed_manager).availablePermits();
+    }
+
+    private Semaphore slots_of(Manager seed_manager) {
+        return slots.computeIfAbsent(seed_manager, manager -> new Semaphore(MAX_REQUESTS_PER_SEEDER));
+    }
+
+    /**
+     * Order seeders by their score, the one expected to answer first at the beginning
+     *
+     * @param seed_managers The managers of the seeders
+     * @return A new list with the same seeders, the best first
+     */
+    public List<Manager> rank(Collection<Manager> seed_managers) {
+        Map<Manager, Double> scores = new HashMap<>();
+        for (Manager seed_manager : seed_managers) {
+            scores.put(seed_manager, score(seed_manager));
+        }
+        List<Manager> ranked = new ArrayList<>(seed_managers);
+        ranked.sort(Comparator.comparingDouble(scores::get));
+        return ranked;
+    }
+
+    /**
+     * Get the performance of every peer asked during this session
+     *
+     * @return A line per peer with its latency, speed, errors and last time seen
+     */
+    public String get_stats() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, PeerStats> entry : new TreeMap<>(stats).entrySet()) {
+            builder.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Ask every candidate which of the chunks of a file it holds
+     * Candidates that can't be reached are left out
+     *
+     * @param candidates The managers of the nodes that may hold chunks
+     * @param hashes     The hashes of the chunks
+     * @return The chunks every reachable candidate holds, as a bit per hash
+     */
+    public Map<Manager, BitSet> probe(Collection<Manager> candidates, List<String> hashes) {
+        Map<Manager, BitSet> availability = new LinkedHashMap<>();
+        for (Manager candidate : candidates) {
+            try {
+                availability.put(candidate, candidate.get_availability(hashes));
+            } catch (Exception e) {
+                PeerImp.logger.info("A node could not send which chunks it holds");
+            }
+        }
+        return availability;
+    }
+
+    /**
+     * Get the seeders that hold a chunk, the best first
+     *
+     * @param availability The chunks every seeder holds, from probe()
+     * @param chunk_index  The index of the chunk in the hashes given to probe()
+     * @return The managers of the seeders that hold it
+     */
+    public List<Manager> holders(Map<Manager, BitSet> availability, int chunk_index) {
+        List<Manager> holders = new ArrayList<>();
+        for (Map.Entry<Manager, BitSet> entry : availability.entrySet()) {
+            if (entry.getValue().get(chunk_index)) {
+                holders.add(entry.getKey());
+            }
+        }
+        return rank(holders);
+    }
+
+    /**
+     * Order the chunks of a file rarest first, the ones held by the fewest seeders before the others
+     * Chunks with the same number of holders keep their order
+     *
+     * @param availability The chunks every seeder holds, from probe()
+     * @param chunks       Number of chunks given to probe()
+     * @return The indexes of the chunks, rarest first
+     */
+    public List<Integer> rarest_first(Map<Manager, BitSet> availability, int chunks) {
+        int[] copies = new int[chunks];
+        for (BitSet held : availability.values()) {
+            for (int i = held.nextSetBit(0); i >= 0 && i < chunks; i = held.nextSetBit(i + 1)) {
+                copies[i]++;
+            }
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingInt(index -> copies[index]));
+        return order;
+    }
+}
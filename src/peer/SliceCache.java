@@ -0,0 +1,277 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of single slices limited by a byte budget instead of a number of files
+ * Entries are kept in LRU order, and a new slice is only admitted when it is evicting something
+ * if it has been requested more often than the slice it would evict (TinyLFU admission)
+ * In off-heap mode the bytes are kept in direct memory segments, outside the Java heap. A hit copies them into
+ * a pooled buffer outside the lock of the cache, and the buffer goes back to the pool once the slice is sent
+ */
+public class SliceCache {
+    /**
+     * Maximum number of bytes of slice data kept in the cache
+     */
+    private final long budget;
+    /**
+     * Cached slices in access order, keyed by hash:slice_index
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    /**
+     * Approximate request counts of every slice, cached or not
+     */
+    private final FrequencySketch sketch;
+    /**
+     * Segments where the slices are stored in off-heap mode, null in heap mode
+     */
+    private final OffHeapSlab slab;
+    /**
+     * Bytes currently cached
+     */
+    private long used;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    /**
+     * Constructor for SliceCache
+     *
+     * @param budget     maximum number of bytes of slice data kept in the cache
+     * @param slice_size the size of a slice in bytes, used to size the frequency sketch and the segments
+     * @param off_heap   store the slices in direct memory instead of the heap
+     */
+    public SliceCache(long budget, int slice_size, boolean off_heap) {
+        this.budget = budget;
+        this.slab = off_heap ? new OffHeapSlab(slice_size, (int) (budget / slice_size)) : null;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.sketch = new FrequencySketch((int) Math.max(64, Math.min(1 << 20, budget / slice_size)));
+        this.used = 0;
+    }
+
+    /**
+     * Get a slice from the cache, counting the request for the admission policy
+     *
+     * @param hash        The hash of the file
+     * @param slice_index The index of the slice
+     * @return The slice, or null if it is not cached
+     */
+    public ByteSlice get(String hash, int slice_index) {
+        String key = hash + ":" + slice_index;
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(key);
+            entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            if (entry.segment == null) {
+                return entry.slice;
+            }
+            // Its segment is not reused while it is being copied, even if the entry is evicted meanwhile
+            entry.pins++;
+        }
+        try {
+            return ByteSlice.pooled_copy(entry.segment.duplicate());
+        } finally {
+            unpin(entry);
+        }
+    }
+
+    /**
+     * Stop copying an off-heap entry, giving its segment back to the slab if it was evicted meanwhile
+     *
+     * @param entry The entry
+     */
+    private synchronized void unpin(Entry entry) {
+        entry.pins--;
+        if (entry.evicted && entry.pins == 0) {
+            slab.free(entry.segment);
+        }
+    }
+
+    /**
+     * Check if a slice is cached without counting it as a request
+     *
+     * @param hash        The hash of the file
+     * @param slice_index The index of the slice
+     * @return True if the slice is in the cache
+     */
+    public synchronized boolean contains(String hash, int slice_index) {
+        return entries.containsKey(hash + ":" + slice_index);
+    }
+
+    /**
+     * Offer a slice to the cache, it is only kept if its request frequency is higher than the victims'
+     * Speculative slices, read before being requested, are also kept when their frequency is the same
+     *
+     * @param hash        The hash of the file
+     * @param slice_index The index of the slice
+     * @param slice       The slice
+     * @param speculative True if the slice has been read ahead and has not been requested yet
+     */
+    public synchronized void put(String hash, int slice_index, ByteSlice slice, boolean speculative) {
+        String key = hash + ":" + slice_index;
+        int size = slice.getBytes_written();
+        if (entries.containsKey(key) || size > budget) {
+            return;
+        }
+        int frequency = sketch.frequency(key);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        long freed = 0;
+        while (used - freed + size > budget && iterator.hasNext()) {
+            Map.Entry<String, Entry> victim = iterator.next();
+            int victim_frequency = sketch.frequency(victim.getKey());
+            if (victim_frequency > frequency || (victim_frequency == frequency && !speculative)) {
+                rejections++;
+                return;
+            }
+            freed += victim.getValue().size;
+        }
+        iterator = entries.entrySet().iterator();
+        while (used + size > budget && iterator.hasNext()) {
+            remove(iterator, iterator.next().getValue());
+            evictions++;
+        }
+        if (slab == null) {
+            entries.put(key, new Entry(slice, null, size));
+        } else {
+            ByteBuffer segment = slab.allocate();
+            if (segment == null) {
+                rejections++;
+                return;
+            }
+            segment.put(slice.getBytes(), 0, size);
+            segment.flip();
+            entries.put(key, new Entry(null, segment, size));
+        }
+        used += size;
+    }
+
+    /**
+     * Remove every slice of a file from the cache
+     *
+     * @param hash The hash of the file
+     */
+    public synchronized void invalidate(String hash) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(hash + ":")) {
+                remove(iterator, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the entry the iterator is at, giving its segment back to the slab unless it is being copied
+     *
+     * @param iterator An iterator of entries that has just returned the entry to remove
+     * @param entry    The entry to remove
+     */
+    private void remove(Iterator<Map.Entry<String, Entry>> iterator, Entry entry) {
+        iterator.remove();
+        used -= entry.size;
+        entry.evicted = true;
+        if (entry.segment != null && entry.pins == 0) {
+            slab.free(entry.segment);
+        }
+    }
+
+    /**
+     * Get the counters of the cache
+     *
+     * @return a string of the style slices=N bytes=used/budget hits=N misses=N evictions=N rejected=N
+     */
+    public synchronized String get_stats() {
+        return "slices=" + entries.size() + " bytes=" + used + "/" + budget + " hits=" + hits + " misses=" + misses
+                + " evictions=" + evictions + " rejected=" + rejections;
+    }
+
+    /**
+     * A cached slice, kept either as a heap ByteSlice or as an off-heap segment
+     */
+    private static class Entry {
+        final ByteSlice slice;
+        final ByteBuffer segment;
+        final int size;
+        /**
+         * Number of hits copying the segment right now
+         */
+        int pins;
+        /**
+         * True once the entry has left the cache, its segment is freed when the last copy ends
+         */
+        boolean evicted;
+
+        Entry(ByteSlice slice, ByteBuffer segment, int size) {
+            this.slice = slice;
+            this.segment = segment;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 rows of small counters used to estimate how often a key has been requested
+     * All counters are halved periodically so old popularity fades away
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private final int[][] rows;
+        private final int mask;
+        private final int sample_size;
+        private int additions;
+
+        FrequencySketch(int expected_entries) {
+            int width = Integer.highestOneBit(expected_entries * 4 - 1) << 1;
+            this.rows = new int[4][width];
+            this.mask = width - 1;
+            this.sample_size = 10 * expected_entries;
+            this.additions = 0;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < MAX_COUNT) {
+                    rows[i][index]++;
+                }
+            }
+            if (++additions >= sample_size) {
+                for (int[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                frequency = Math.min(frequency, rows[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row + 1);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package peer;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the slices sent to downloaders that accept it
+ * Slices are compressed with Deflater at its fastest level, and only sent compressed if that saves at least
+ * an eighth of their size, so binary files are sent as they are
+ * The compressed form of the slices, or the fact that they don't compress, is kept in an LRU cache so
+ * popular slices are compressed only once
+ */
+public class SliceCodec {
+    /**
+     * Codec flag of slices compressed with Deflater
+     */
+    public static final int CODEC_DEFLATE = 1;
+    /**
+     * Every codec this version understands, sent by downloaders to say what they accept
+     */
+    public static final int SUPPORTED_CODECS = CODEC_DEFLATE;
+    /**
+     * Cached value of the slices that don't compress
+     */
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    /**
+     * Output buffer of the compression, never bigger than the largest slice
+     */
+    private static final ThreadLocal<byte[]> compress_buffer = ThreadLocal.withInitial(() -> new byte[0]);
+    /**
+     * Maximum bytes of compressed slices kept
+     */
+    private final long budget;
+    /**
+     * Compressed slices by hash:slice_index, in access order
+     */
+    private final LinkedHashMap<String, byte[]> compressed;
+    private long used;
+
+    /**
+     * Constructor for SliceCodec
+     *
+     * @param budget maximum bytes of compressed slices kept
+     */
+    public SliceCodec(long budget) {
+        this.budget = budget;
+        this.compressed = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get the form of a slice that is sent to a downloader
+     *
+     * @param hash        The hash of the file
+     * @param slice_index The index of the slice
+     * @param slice       The slice
+     * @param codecs      The codecs the downloader accepts
+     * @return The compressed slice if the downloader accepts it and it saves space, the same slice otherwise
+     */
+    public ByteSlice encode(String hash, int slice_index, ByteSlice slice, int codecs) {
+        if ((codecs & CODEC_DEFLATE) == 0 || budget <= 0) {
+            return slice;
+        }
+        String key = hash + ":" + slice_index;
+        byte[] deflated;
+        synchronized (this) {
+            deflated = compressed.get(key);
+        }
+        if (deflated == null) {
+            deflated = compress(slice.getBytes(), slice.getBytes_written());
+            store(key, deflated == null ? INCOMPRESSIBLE : deflated);
+        } else if (deflated == INCOMPRESSIBLE) {
+            deflated = null;
+        }
+        if (deflated == null) {
+            return slice;
+        }
+        return ByteSlice.deflated(deflated, slice.getBytes_written());
+    }
+
+    /**
+     * Remove every compressed slice of a file
+     *
+     * @param hash The hash of the file
+     */
+    public synchronized void invalidate(String hash) {
+        Iterator<Map.Entry<String, byte[]>> iterator = compressed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, byte[]> entry = iterator.next();
+            if (entry.getKey().startsWith(hash + ":")) {
+                used -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void store(String key, byte[] deflated) {
+        byte[] previous = compressed.put(key, deflated);
+        if (previous != null) {
+            used -= previous.length;
+        }
+        used += deflated.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = compressed.entrySet().iterator();
+        while (used > budget && eldest.hasNext()) {
+            used -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Compress the bytes of a slice
+     *
+     * @param bytes  The data of the slice
+     * @param length Number of valid bytes in data
+     * @return The compressed bytes, or null if they are not at least an eighth smaller
+     */
+    static byte[] compress(byte[] bytes, int length) {
+        int limit = length - length / 8;
+        byte[] output = compress_buffer.get();
+        if (output.length < limit) {
+            output = new byte[limit];
+            compress_buffer.set(output);
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(output, size, limit - size);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(output, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Decompress a slice into a buffer
+     *
+     * @param deflated The compressed bytes
+     * @param length   Number of compressed bytes
+     * @param target   The buffer, at least as big as the slice
+     * @param size     The size of the slice once decompressed
+     * @throws IOException If the compressed bytes are not valid
+     */
+    static void decompress(byte[] deflated, int length, byte[] target, int size) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(deflated, 0, length);
+        try {
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()) {
+                int amount = inflater.inflate(target, inflated, size - inflated);
+                if (amount == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += amount;
+            }
+            if (inflated != size) {
+                throw new StreamCorruptedException("Compressed slice has the wrong size");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Compressed slice not valid: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package peer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Small file kept next to an unfinished download recording which of its slices are already in the .part file
+ * It starts with a header describing the download and ends with a memory-mapped region holding the size of the
+ * file, once known, and a bitmap of the completed slices, so a node that restarts can resume the download
+ * and only fetch the missing slices
+ */
+public class SliceJournal {
+    /**
+     * First bytes of every journal, "DCJ2"
+     */
+    private static final int MAGIC = 0x44434a32;
+    /**
+     * First bytes of the journals written before they recorded the hash of the whole file, "DCJ1"
+     */
+    private static final int MAGIC_V1 = 0x44434a31;
+    /**
+     * The file of the journal
+     */
+    private final Path path;
+    /**
+     * The hash of the file being downloaded
+     */
+    private final String hash;
+    /**
+     * The hash of the whole file, the same as hash if the download is not a chunk
+     * Seeders are found by it, they don't announce the chunks. Null for the chunks of a "DCJ1" journal
+     */
+    private final String file_hash;
+    /**
+     * The name the downloaded file will have
+     */
+    private final String file_name;
+    /**
+     * The name of the whole file, if the download is a chunk
+     */
+    private final String original_name;
+    /**
+     * If the download is a chunk, all the hashes needed to rebuild the original file
+     */
+    private final List<String> friend_hashes;
+    /**
+     * Number of slices of the file
+     */
+    private final int slices_total;
+    /**
+     * Bytes of the mapped region before the bitmap, where the size of the file is kept
+     */
+    private static final int SIZE_BYTES = 8;
+    /**
+     * The size of the file followed by one bit per slice, set when the slice has been written
+     */
+    private MappedByteBuffer bitmap;
+
+    private SliceJournal(Path path, String hash, String file_hash, String file_name, String original_name,
+                         List<String> friend_hashes, int slices_total) {
+        this.path = path;
+        this.hash = hash;
+        this.file_hash = file_hash;
+        this.file_name = file_name;
+        this.original_name = original_name;
+        this.friend_hashes = friend_hashes;
+        this.slices_total = slices_total;
+    }
+
+    /**
+     * Get the journal path of a download
+     *
+     * @param file_location Location where the downloaded file will be saved
+     * @return The path of its hidden .journal file
+     */
+    public static Path journal_path(Path file_location) {
+        return file_location.resolveSibling("." + file_location.getFileName() + ".journal");
+    }
+
+    /**
+     * Open the journal of a download, creating it if it doesn't exist or if it belongs to another download
+     *
+     * @param file_location Location where the downloaded file will be saved
+     * @param hash          The hash of the file being downloaded
+     * @param file_hash     The hash of the whole file, the same as hash if the download is not a chunk
+     * @param original_name The name of the whole file, if the download is a chunk
+     * @param friend_hashes If the download is a chunk, all the hashes needed to rebuild the original file
+     * @param slices_total  Number of slices of the file
+     * @return The opened journal
+     * @throws IOException If reading or writing the journal fails
+     */
+    public static SliceJournal open(Path file_location, String hash, String file_hash, String original_name,
+                                    List<String> friend_hashes, int slices_total) throws IOException {
+        Path path = journal_path(file_location);
+        if (Files.exists(path)) {
+            try {
+                SliceJournal existing = read(path);
+                if (existing.hash.equals(hash) && file_hash.equals(existing.file_hash)
+                        && existing.slices_total == slices_total) {
+                    return existing;
+                }
+            } catch (IOException e) {
+                PeerImp.logger.warning("Journal " + path + " is not valid, starting the download again");
+            }
+        }
+        SliceJournal journal = new SliceJournal(path, hash, file_hash, file_location.getFileName().toString(),
+                original_name, friend_hashes, slices_total);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeUTF(journal.hash);
+            file.writeUTF(journal.file_hash);
+            file.writeUTF(journal.file_name);
+            file.writeUTF(journal.original_name);
+            file.writeInt(journal.friend_hashes.size());
+            for (String friend : journal.friend_hashes) {
+                file.writeUTF(friend);
+            }
+            file.writeInt(journal.slices_total);
+            journal.map(file);
+        }
+        return journal;
+    }
+
+    /**
+     * Read an existing journal, also the ones written before they recorded the hash of the whole file
+     *
+     * @param path The file of the journal
+     * @return The journal, with its bitmap mapped
+     * @throws IOException If the journal can't be read or is not valid
+     */
+    public static SliceJournal read(Path path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            int magic = file.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Not a journal");
+            }
+            String hash = file.readUTF();
+            String file_hash = magic == MAGIC ? file.readUTF() : null;
+            String file_name = file.readUTF();
+            String original_name = file.readUTF();
+            int friends = file.readInt();
+            List<String> friend_hashes = new ArrayList<>();
+            for (int i = 0; i < friends; i++) {
+                friend_hashes.add(file.readUTF());
+            }
+            int slices_total = file.readInt();
+            if (slices_total < 0) {
+                throw new IOException("Not a journal");
+            }
+            if (file_hash == null && friend_hashes.size() <= 1) {
+                file_hash = hash;
+            }
+            SliceJournal journal = new SliceJournal(path, hash, file_hash, file_name, original_name, friend_hashes,
+                    slices_total);
+            journal.map(file);
+            return journal;
+        }
+    }
+
+    /**
+     * Map the size and the bitmap, which start where the file pointer is, growing the file if needed
+     *
+     * @param file The journal file, positioned right after the header
+     * @throws IOException If mapping fails
+     */
+    private void map(RandomAccessFile file) throws IOException {
+        long start = file.getFilePointer();
+        int length = SIZE_BYTES + (slices_total + 7) / 8;
+        if (file.length() < start + length) {
+            file.setLength(start + length);
+        }
+        this.bitmap = file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, length);
+    }
+
+    /**
+     * Record that a slice has been written
+     *
+     * @param slice_index The index of the slice
+     */
+    public synchronized void mark(int slice_index) {
+        int index = SIZE_BYTES + slice_index / 8;
+        bitmap.put(index, (byte) (bitmap.get(index) | (1 << (slice_index % 8))));
+    }
+
+    /**
+     * Forget a slice recorded as written, like one whose bytes did not reach the disk
+     *
+     * @param slice_index The index of the slice
+     */
+    public synchronized void unmark(int slice_index) {
+        int index = SIZE_BYTES + slice_index / 8;
+        bitmap.put(index, (byte) (bitmap.get(index) & ~(1 << (slice_index % 8))));
+    }
+
+    /**
+     * Record the size of the file, known when its last slice is written
+     *
+     * @param file_size The size of the file in bytes
+     */
+    public synchronized void setFile_size(long file_size) {
+        bitmap.putLong(0, file_size);
+    }
+
+    /**
+     * Get the size of the file recorded with setFile_size()
+     *
+     * @return The size in bytes, 0 if it is not known yet
+     */
+    public synchronized long getFile_size() {
+        return bitmap.getLong(0);
+    }
+
+    /**
+     * Get the slices that have already been written
+     *
+     * @return A BitSet with a bit set for every completed slice
+     */
+    public synchronized BitSet completed() {
+        BitSet completed = new BitSet(slices_total);
+        for (int i = 0; i < slices_total; i++) {
+            if ((bitmap.get(SIZE_BYTES + i / 8) & (1 << (i % 8))) != 0) {
+                completed.set(i);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Delete the journal once the download is complete
+     */
+    public synchronized void delete() {
+        bitmap = null;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            PeerImp.logger.info("ERROR deleting journal " + path);
+        }
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getFile_hash() {
+        return file_hash;
+    }
+
+    public String getFile_name() {
+        return file_name;
+    }
+
+    public String getOriginal_name() {
+        return original_name;
+    }
+
+    public List<String> getFriend_hashes() {
+        return friend_hashes;
+    }
+}
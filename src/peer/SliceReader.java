@@ -0,0 +1,26 @@
+package peer;
+
+import java.io.IOException;
+
+/**
+ * Defines how the slices of a shared file are read from the disk when they are served to other peers
+ */
+public interface SliceReader {
+    /**
+     * Read a single slice of a file
+     *
+     * @param hash        The hash of the file
+     * @param route       The local route of the file
+     * @param slice_index The index of the slice to read
+     * @return The slice, with bytes_written set to the bytes actually read
+     * @throws IOException If reading fails
+     */
+    ByteSlice read_slice(String hash, String route, int slice_index) throws IOException;
+
+    /**
+     * Drop what is kept open to read a file, because the file under the hash has changed
+     *
+     * @param hash The hash of the file
+     */
+    void forget(String hash);
+}
@@ -0,0 +1,141 @@
+package peer;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs queued tasks with a bounded number of them active at once
+ * Tasks wait in a lock-free ready queue, and every task that completes starts the next one,
+ * so no thread has to poll the active tasks to know when one has finished
+ */
+public class TaskScheduler {
+    /**
+     * Maximum number of active tasks
+     */
+    private final int allowed;
+    /**
+     * Name used in the logs and in the progress
+     */
+    private final String name;
+    /**
+     * Tasks waiting for a free slot
+     */
+    private final ConcurrentLinkedQueue<MyThread> ready;
+    /**
+     * Tasks that are running right now
+     */
+    private final Set<MyThread> active;
+    /**
+     * Number of slots taken, never more than allowed
+     */
+    private final AtomicInteger running;
+    /**
+     * Threads that run the tasks, virtual threads where available
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Constructor for a TaskScheduler
+     *
+     * @param allowed the number of active tasks allowed at once
+     * @param name    name used in the logs and in the progress
+     */
+    public TaskScheduler(int allowed, String name) {
+        this.allowed = allowed;
+        this.name = name;
+        this.ready = new ConcurrentLinkedQueue<>();
+        this.active = ConcurrentHashMap.newKeySet();
+        this.running = new AtomicInteger(0);
+        this.executor = create_executor(name);
+    }
+
+    /**
+     * Create the executor of the tasks, with a virtual thread per task if the Java version has them,
+     * otherwise with a pool of reused daemon threads
+     *
+     * @param name prefix of the name of the threads
+     * @return the executor
+     */
+    private static ExecutorService create_executor(String name) {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Add a list of tasks to the ready queue and start as many as there are free slots
+     *
+     * @param tasks All the tasks added to the queue
+     */
+    public void add_threads(List<MyThread> tasks) {
+        ready.addAll(tasks);
+        PeerImp.logger.info("Added " + tasks.size() + " tasks to " + name);
+        dispatch();
+    }
+
+    /**
+     * Start ready tasks while there are free slots
+     */
+    private void dispatch() {
+        while (!ready.isEmpty()) {
+            int taken = running.get();
+            if (taken >= allowed) {
+                return;
+            }
+            if (!running.compareAndSet(taken, taken + 1)) {
+                continue;
+            }
+            MyThread task = ready.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            active.add(task);
+            executor.execute(() -> execute(task));
+        }
+    }
+
+    /**
+     * Run a task and, when it completes, free its slot and start the next one
+     *
+     * @param task The task
+     */
+    private void execute(MyThread task) {
+        try {
+            task.create_slice_array();
+            task.run();
+        } catch (Exception e) {
+            PeerImp.logger.severe("A task failed at " + name + ": " + e.getMessage());
+        } finally {
+            active.remove(task);
+            running.decrementAndGet();
+            dispatch();
+        }
+    }
+
+    /**
+     * Print the progress of current downloads/files
+     */
+    public void printProgress() {
+        List<String> progress = new LinkedList<>();
+        for (MyThread task : active) {
+            progress.add(task.get_progress());
+        }
+        System.out.println("ACTIVE: " + progress);
+        System.out.println("QUEUE: " + ready.size());
+    }
+}
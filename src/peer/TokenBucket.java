@@ -0,0 +1,95 @@
+package peer;
+
+/**
+ * Token bucket limiting a flow of bytes to a rate, with bursts of up to one second of that rate
+ * Tokens are refilled from the elapsed time whenever the bucket is used, no thread refills them
+ * A rate of 0 means no limit
+ */
+public class TokenBucket {
+    /**
+     * Bytes per second, 0 for no limit
+     */
+    private long rate;
+    /**
+     * Bytes that can be sent right now, negative when senders are in debt
+     */
+    private double tokens;
+    /**
+     * Time of the last refill, in nanoseconds
+     */
+    private long last_refill;
+
+    /**
+     * Constructor for TokenBucket
+     *
+     * @param rate bytes per second, 0 for no limit
+     */
+    public TokenBucket(long rate) {
+        this.rate = Math.max(0, rate);
+        this.tokens = this.rate;
+        this.last_refill = System.nanoTime();
+    }
+
+    /**
+     * Change the rate, the tokens already in the bucket are kept up to the new burst
+     *
+     * @param rate bytes per second, 0 for no limit
+     */
+    public synchronized void set_rate(long rate) {
+        refill();
+        this.rate = Math.max(0, rate);
+        this.tokens = Math.min(tokens, this.rate);
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + rate * ((now - last_refill) / 1e9));
+        last_refill = now;
+    }
+
+    /**
+     * Take the tokens of some bytes, going into debt if there are not enough
+     *
+     * @param bytes The number of bytes
+     * @return Nanoseconds the caller has to wait before sending them, 0 if it can send them now
+     */
+    public synchronized long reserve(long bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+    }
+
+    /**
+     * Take the tokens of up to some bytes without waiting
+     *
+     * @param wanted The number of bytes wanted
+     * @return The number of bytes that can be sent now, 0 if the bucket is empty
+     */
+    public synchronized long take(long wanted) {
+        if (rate == 0) {
+            return wanted;
+        }
+        refill();
+        long granted = (long) Math.max(0, Math.min(wanted, tokens));
+        tokens -= granted;
+        return granted;
+    }
+
+    /**
+     * Give back tokens taken with take() that were not used
+     *
+     * @param bytes The number of bytes not sent
+     */
+    public synchronized void give_back(long bytes) {
+        if (rate != 0) {
+            tokens = Math.min(rate, tokens + bytes);
+        }
+    }
+}
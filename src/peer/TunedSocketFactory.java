@@ -0,0 +1,225 @@
+package peer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Socket factory used by RMI for the remote objects and the registry of a node
+ * The sockets have TCP_NODELAY, larger buffers and buffered streams, and may compress everything they send
+ * The client side travels with the stubs, so a downloader always talks to a node with the settings of that node,
+ * and equal factories let RMI reuse the open connections to the same node
+ */
+public class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+    /**
+     * Size of the stream buffers, 64 KB
+     */
+    private static final int STREAM_BUFFER = 64 * 1024;
+    /**
+     * Send and receive buffer size of the sockets, in bytes
+     */
+    private final int socket_buffer;
+    /**
+     * True if the sockets compress what they send
+     */
+    private final boolean compress;
+
+    /**
+     * Constructor for TunedSocketFactory
+     *
+     * @param socket_buffer send and receive buffer size of the sockets, in bytes
+     * @param compress      true if the sockets compress what they send
+     */
+    public TunedSocketFactory(int socket_buffer, boolean compress) {
+        this.socket_buffer = socket_buffer;
+        this.compress = compress;
+    }
+
+    /**
+     * Get the factory used to export the remote objects of this node, configured with system properties
+     *
+     * @return The factory
+     */
+    public static TunedSocketFactory for_objects() {
+        return new TunedSocketFactory(Integer.getInteger("duchnet.rmi.buffer.kb", 256) * 1024,
+                Boolean.getBoolean("duchnet.rmi.compress"));
+    }
+
+    /**
+     * Get the factory of the registries, which never compresses so nodes with different settings can find each other
+     *
+     * @return The factory
+     */
+    public static TunedSocketFactory for_registry() {
+        return new TunedSocketFactory(Integer.getInteger("duchnet.rmi.buffer.kb", 256) * 1024, false);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        TunedSocket socket = new TunedSocket(compress);
+        configure(socket);
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                TunedSocket socket = new TunedSocket(compress);
+                implAccept(socket);
+                configure(socket);
+                return socket;
+            }
+        };
+        // Accepted sockets inherit the receive buffer, it has to be set before binding to go over 64 KB
+        server.setReceiveBufferSize(socket_buffer);
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    private void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.setSendBufferSize(socket_buffer);
+        socket.setReceiveBufferSize(socket_buffer);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TunedSocketFactory that = (TunedSocketFactory) o;
+        return socket_buffer == that.socket_buffer && compress == that.compress;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(socket_buffer, compress);
+    }
+
+    /**
+     * Socket whose streams are buffered and, if asked, compressed
+     * Compressed data is flushed with SYNC_FLUSH every time RMI flushes a call, so no call waits for more data
+     * The native memory of the deflater and the inflater is freed when the socket is closed, not left to the GC,
+     * as RMI opens and drops connections all the time
+     */
+    private static class TunedSocket extends Socket {
+        private final boolean compress;
+        private InputStream input;
+        private OutputStream output;
+        private Deflater deflater;
+        private Inflater inflater;
+        /**
+         * True once the deflater and the inflater have been ended, set and checked holding each of them
+         */
+        private volatile boolean ended;
+
+        TunedSocket(boolean compress) {
+            this.compress = compress;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                InputStream stream = super.getInputStream();
+                if (compress) {
+                    inflater = new Inflater();
+                    stream = new InflaterInputStream(stream, inflater) {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            synchronized (inflater) {
+                                if (ended) {
+                                    throw new SocketException("Socket closed");
+                                }
+                                return super.read(b, off, len);
+                            }
+                        }
+
+                        @Override
+                        public int available() {
+                            // InflaterInputStream says 1 until the end, which makes buffered readers block
+                            return 0;
+                        }
+                    };
+                }
+                input = new BufferedInputStream(stream, STREAM_BUFFER);
+            }
+            return input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                OutputStream stream = super.getOutputStream();
+                if (compress) {
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    stream = new DeflaterOutputStream(stream, deflater, STREAM_BUFFER, true) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            synchronized (deflater) {
+                                if (ended) {
+                                    throw new SocketException("Socket closed");
+                                }
+                                super.write(b, off, len);
+                            }
+                        }
+
+                        @Override
+                        public void flush() throws IOException {
+                            synchronized (deflater) {
+                                if (ended) {
+                                    throw new SocketException("Socket closed");
+                                }
+                                super.flush();
+                            }
+                        }
+                    };
+                }
+                output = new BufferedOutputStream(stream, STREAM_BUFFER);
+            }
+            return output;
+        }
+
+        @Override
+        public void close() throws IOException {
+            OutputStream output;
+            synchronized (this) {
+                output = this.output;
+            }
+            if (output != null) {
+                try {
+                    output.flush();
+                } catch (IOException e) {
+                    // The connection is already broken, nothing left to send
+                }
+            }
+            // Closing the socket first wakes up a reader blocked in the inflater, so it can be ended
+            super.close();
+            synchronized (this) {
+                if (deflater != null) {
+                    synchronized (deflater) {
+                        ended = true;
+                        deflater.end();
+                    }
+                }
+                if (inflater != null) {
+                    synchronized (inflater) {
+                        ended = true;
+                        inflater.end();
+                    }
+                }
+            }
+        }
+    }
+}
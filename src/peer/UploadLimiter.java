@@ -0,0 +1,141 @@
+package peer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the upload bandwidth of the node with a global token bucket and a bucket for every downloader,
+ * so one fast downloader can't take the whole uplink
+ * Both limits can be changed while the node runs, and the bytes sent to every downloader are counted
+ */
+public class UploadLimiter {
+    /**
+     * Bucket shared by all the uploads
+     */
+    private final TokenBucket global;
+    /**
+     * Bytes per second every downloader is limited to, 0 for no limit
+     */
+    private volatile long peer_rate;
+    /**
+     * Bucket of every downloader, by host
+     */
+    private final ConcurrentHashMap<String, TokenBucket> peers = new ConcurrentHashMap<>();
+    /**
+     * Bytes sent to every downloader, by host
+     */
+    private final ConcurrentHashMap<String, AtomicLong> sent = new ConcurrentHashMap<>();
+    /**
+     * Time the limiter was created, used to show the average rates
+     */
+    private final long start = System.nanoTime();
+
+    /**
+     * Constructor for UploadLimiter
+     *
+     * @param global_rate bytes per second of all the uploads, 0 for no limit
+     * @param peer_rate   bytes per second of every downloader, 0 for no limit
+     */
+    public UploadLimiter(long global_rate, long peer_rate) {
+        this.global = new TokenBucket(global_rate);
+        this.peer_rate = peer_rate;
+    }
+
+    /**
+     * Change the limit of all the uploads
+     *
+     * @param rate bytes per second, 0 for no limit
+     */
+    public void set_global_rate(long rate) {
+        global.set_rate(rate);
+    }
+
+    /**
+     * Change the limit of every downloader
+     *
+     * @param rate bytes per second, 0 for no limit
+     */
+    public void set_peer_rate(long rate) {
+        this.peer_rate = rate;
+        for (TokenBucket bucket : peers.values()) {
+            bucket.set_rate(rate);
+        }
+    }
+
+    private TokenBucket bucket_of(String peer) {
+        return peers.computeIfAbsent(peer, key -> new TokenBucket(peer_rate));
+    }
+
+    private void account(String peer, long bytes) {
+        sent.computeIfAbsent(peer, key -> new AtomicLong()).addAndGet(bytes);
+    }
+
+    /**
+     * Wait until some bytes can be sent to a downloader, used by the blocking RMI uploads
+     *
+     * @param peer  The host of the downloader
+     * @param bytes The number of bytes about to be sent
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void acquire(String peer, long bytes) throws InterruptedException {
+        long wait = Math.max(bucket_of(peer).reserve(bytes), global.reserve(bytes));
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        account(peer, bytes);
+    }
+
+    /**
+     * Take permission to send up to some bytes to a downloader without waiting, used by the data plane
+     *
+     * @param peer   The host of the downloader
+     * @param wanted The number of bytes wanted
+     * @return The number of bytes that can be sent now, 0 if the downloader or the node is over its limit
+     */
+    public long take(String peer, long wanted) {
+        TokenBucket bucket = bucket_of(peer);
+        long granted = bucket.take(wanted);
+        long allowed = global.take(granted);
+        bucket.give_back(granted - allowed);
+        return allowed;
+    }
+
+    /**
+     * Give back bytes obtained with take() that were not sent, and count the ones that were
+     *
+     * @param peer    The host of the downloader
+     * @param granted The number of bytes obtained with take()
+     * @param used    The number of bytes sent
+     */
+    public void settle(String peer, long granted, long used) {
+        if (granted > used) {
+            bucket_of(peer).give_back(granted - used);
+            global.give_back(granted - used);
+        }
+        account(peer, used);
+    }
+
+    /**
+     * Get the limits and the bytes sent to every downloader
+     *
+     * @return a string with the limits, and a line per downloader with its bytes and average rate
+     */
+    public String get_stats() {
+        double seconds = Math.max(1, (System.nanoTime() - start) / 1e9);
+        StringBuilder builder = new StringBuilder();
+        builder.append("limit=").append(format_rate(global.getRate()))
+                .append(" per peer=").append(format_rate(peer_rate)).append("\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(sent).entrySet()) {
+            long bytes = entry.getValue().get();
+            builder.append(entry.getKey()).append(String.format(" sent=%.1fMB avg=%.1fKB/s",
+                    bytes / (1024.0 * 1024), bytes / 1024.0 / seconds)).append("\n");
+        }
+        return builder.toString();
+    }
+
+    private static String format_rate(long rate) {
+        return rate == 0 ? "none" : rate / 1024 + "KB/s";
+    }
+}
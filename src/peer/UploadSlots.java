@@ -0,0 +1,342 @@
+package peer;
+
+import java.util.*;
+
+/**
+ * Hands out the upload slots of the node among the downloaders, replacing a first-come first-served semaphore
+ * Only a bounded set of downloaders is unchoked at a time, and only their requests get slots; the others wait
+ * Every rechoke interval the unchoked set is chosen again: the downloaders that uploaded the most to us lately
+ * go first, then the ones that have waited the longest, and one more choked downloader is unchoked at random
+ * every few intervals (optimistic unchoke) so newcomers get a chance to prove themselves
+ * Among the unchoked downloaders a free slot goes to the one holding the fewest, so none of them can take
+ * all the slots with many parallel requests
+ * While nobody else is waiting, a downloader is unchoked at once, so there is no choking without contention
+ */
+public class UploadSlots {
+    /**
+     * Milliseconds between two choices of the unchoked set
+     */
+    static final long RECHOKE_MILLIS = Long.getLong("duchnet.rechoke.ms", 10000L);
+    /**
+     * Number of rechoke intervals between two optimistic unchokes
+     */
+    static final int OPTIMISTIC_INTERVALS = 3;
+    /**
+     * Milliseconds a downloader stays interested after its last request
+     */
+    static final long INTEREST_MILLIS = 2 * RECHOKE_MILLIS;
+    /**
+     * Milliseconds an unchoked downloader keeps its room without holding or waiting for a slot
+     */
+    static final long IDLE_MILLIS = RECHOKE_MILLIS / 20;
+    /**
+     * Total number of uploads that can be served at the same time
+     */
+    private final int slots;
+    /**
+     * Number of downloaders unchoked by the regular choice, the optimistic one comes on top
+     */
+    private final int unchoke_limit;
+    /**
+     * State of every downloader seen, by host
+     */
+    private final Map<String, Downloader> downloaders = new HashMap<>();
+    /**
+     * Requests waiting for a slot, in arrival order
+     */
+    private final LinkedList<Waiter> waiting = new LinkedList<>();
+    private final Random random = new Random();
+    private int used;
+    private long next_rechoke = System.currentTimeMillis() + RECHOKE_MILLIS;
+    private int intervals;
+    /**
+     * Host unchoked optimistically, null if there is none
+     */
+    private String optimistic;
+
+    /**
+     * Constructor for UploadSlots
+     *
+     * @param slots         Total number of uploads that can be served at the same time
+     * @param unchoke_limit Number of downloaders unchoked at the same time, plus the optimistic one
+     */
+    public UploadSlots(int slots, int unchoke_limit) {
+        this.slots = Math.max(1, slots);
+        this.unchoke_limit = Math.max(1, unchoke_limit);
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Wait until a downloader is unchoked and gets a slot
+     *
+     * @param peer The host of the downloader, "local" for calls that don't come from a downloader
+     * @throws InterruptedException If the thread is interrupted while waiting, the slot is not taken
+     */
+    public synchronized void acquire(String peer) throws InterruptedException {
+        Downloader downloader = interested(peer);
+        Waiter waiter = new Waiter(downloader);
+        waiting.add(waiter);
+        try {
+            while (!waiter.granted) {
+                grant();
+                if (!waiter.granted) {
+                    wait(Math.max(1, next_rechoke - System.currentTimeMillis()));
+                }
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(waiter);
+            if (waiter.granted) {
+                release(peer);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Take a slot without waiting, used by the data plane
+     *
+     * @param peer The host of the downloader
+     * @return True if the downloader is unchoked and got a slot, false if it has to wait through RMI
+     */
+    public synchronized boolean try_acquire(String peer) {
+        Downloader downloader = interested(peer);
+        Waiter waiter = new Waiter(downloader);
+        waiting.addFirst(waiter);
+        grant();
+        waiting.remove(waiter);
+        return waiter.granted;
+    }
+
+    /**
+     * Give back a slot taken with acquire() or try_acquire()
+     *
+     * @param peer The host of the downloader
+     */
+    public synchronized void release(String peer) {
+        Downloader downloader = downloaders.get(peer);
+        if (downloader != null && downloader.held > 0) {
+            downloader.held--;
+            downloader.last_active = System.currentTimeMillis();
+            used--;
+        }
+        grant();
+        notifyAll();
+    }
+
+    /**
+     * Record bytes a peer uploaded to us, which raises its priority when it downloads from us
+     *
+     * @param peer  The host of the peer
+     * @param bytes The bytes received from it
+     */
+    public synchronized void record_received(String peer, long bytes) {
+        if (peer != null) {
+            downloader_of(peer).received += bytes;
+        }
+    }
+
+    private Downloader downloader_of(String peer) {
+        return downloaders.computeIfAbsent(peer, Downloader::new);
+    }
+
+    private Downloader interested(String peer) {
+        Downloader downloader = downloader_of(peer);
+        downloader.last_request = System.currentTimeMillis();
+        downloader.last_active = downloader.last_request;
+        if (downloader.waiting_since == 0) {
+            downloader.waiting_since = downloader.last_request;
+        }
+        return downloader;
+    }
+
+    /**
+     * Give the free slots to the waiting requests of unchoked downloaders, the ones holding the fewest first
+     */
+    private void grant() {
+        if (System.currentTimeMillis() >= next_rechoke) {
+            rechoke();
+        }
+        boolean granted = false;
+        while (used < slots) {
+            Waiter best = null;
+            for (Waiter waiter : waiting) {
+                if (!waiter.granted && unchoke(waiter.downloader)
+                        && (best == null || waiter.downloader.held < best.downloader.held)) {
+                    best = waiter;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            best.granted = true;
+            best.downloader.held++;
+            best.downloader.waiting_since = 0;
+            used++;
+            granted = true;
+        }
+        waiting.removeIf(waiter -> waiter.granted);
+        for (Waiter waiter : waiting) {
+            if (waiter.downloader.waiting_since == 0) {
+                // It got a slot but still has requests waiting, they wait from now
+                waiter.downloader.waiting_since = System.currentTimeMillis();
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Check if a downloader may be served, unchoking it at once if there is room in the unchoked set
+     * Unchoked downloaders that have been idle for a while leave their room to the others until the next rechoke
+     *
+     * @param downloader The downloader
+     * @return True if it is unchoked
+     */
+    private boolean unchoke(Downloader downloader) {
+        if (downloader.unchoked) {
+            return true;
+        }
+        if (unchoked_count() < unchoke_limit) {
+            downloader.unchoked = true;
+            return true;
+        }
+        return false;
+    }
+
+    private int unchoked_count() {
+        int count = 0;
+        for (Downloader downloader : downloaders.values()) {
+            if (downloader.unchoked && !downloader.host.equals(optimistic) && is_active(downloader)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean is_active(Downloader downloader) {
+        if (downloader.held > 0 || System.currentTimeMillis() - downloader.last_active < IDLE_MILLIS) {
+            return true;
+        }
+        for (Waiter waiter : waiting) {
+            if (waiter.downloader == downloader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Choose the unchoked downloaders again
+     */
+    private void rechoke() {
+        long now = System.currentTimeMillis();
+        next_rechoke = now + RECHOKE_MILLIS;
+        List<Downloader> candidates = new ArrayList<>();
+        Iterator<Downloader> iterator = downloaders.values().iterator();
+        while (iterator.hasNext()) {
+            Downloader downloader = iterator.next();
+            downloader.rate = downloader.rate / 2 + downloader.received;
+            downloader.received = 0;
+            downloader.unchoked = false;
+            if (now - downloader.last_request < INTEREST_MILLIS || downloader.held > 0) {
+                candidates.add(downloader);
+            } else if (downloader.rate == 0) {
+                iterator.remove();
+            }
+        }
+        candidates.sort((a, b) -> {
+            if (a.rate != b.rate) {
+                return Long.compare(b.rate, a.rate);
+            }
+            return Long.compare(a.waiting_order(), b.waiting_order());
+        });
+        for (int i = 0; i < Math.min(unchoke_limit, candidates.size()); i++) {
+            candidates.get(i).unchoked = true;
+        }
+        List<Downloader> choked = candidates.subList(Math.min(unchoke_limit, candidates.size()), candidates.size());
+        Downloader previous = optimistic == null ? null : downloaders.get(optimistic);
+        if (previous != null && choked.contains(previous) && intervals % OPTIMISTIC_INTERVALS != 0) {
+            previous.unchoked = true;
+        } else if (!choked.isEmpty()) {
+            Downloader chosen = choked.get(random.nextInt(choked.size()));
+            chosen.unchoked = true;
+            optimistic = chosen.host;
+        } else {
+            optimistic = null;
+        }
+        intervals++;
+        notifyAll();
+    }
+
+    /**
+     * Get the state of the downloaders
+     *
+     * @return a string with the slots in use, and a line per interested downloader
+     */
+    public synchronized String get_stats() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("slots=").append(used).append("/").append(slots)
+                .append(" waiting=").append(waiting.size()).append("\n");
+        for (Downloader downloader : new TreeMap<>(downloaders).values()) {
+            builder.append(downloader.host)
+                    .append(downloader.unchoked ? (downloader.host.equals(optimistic) ? " optimistic" : " unchoked") : " choked")
+                    .append(" slots=").append(downloader.held)
+                    .append(String.format(" uploaded to us=%.1fMB", (downloader.rate + downloader.received) / (1024.0 * 1024)))
+                    .append("\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * State of a downloader
+     */
+    private static class Downloader {
+        final String host;
+        boolean unchoked;
+        /**
+         * Slots it holds right now
+         */
+        int held;
+        long last_request;
+        /**
+         * Time it last asked for or gave back a slot
+         */
+        long last_active;
+        /**
+         * Time it started waiting for a slot, 0 if it is not waiting
+         */
+        long waiting_since;
+        /**
+         * Bytes it uploaded to us since the last rechoke
+         */
+        long received;
+        /**
+         * Bytes it uploaded to us lately, halved every rechoke
+         */
+        long rate;
+
+        Downloader(String host) {
+            this.host = host;
+        }
+
+        long waiting_order() {
+            return waiting_since == 0 ? Long.MAX_VALUE : waiting_since;
+        }
+    }
+
+    /**
+     * A request waiting for a slot
+     */
+    private static class Waiter {
+        final Downloader downloader;
+        boolean granted;
+
+        Waiter(Downloader downloader) {
+            this.downloader = downloader;
+        }
+    }
+}
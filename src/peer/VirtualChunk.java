@@ -0,0 +1,179 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A chunk of a large shared file, described as a range of bytes of the file instead of being written to its own file
+ * Chunks start at a slice boundary, so slice i of a chunk is slice first_slice + i of the whole file and both
+ * are served from the same file, the same cache entries and the same Merkle tree
+ * The hash of a chunk is the CRC32 of its bytes, the same one a chunk written to its own file would have
+ */
+public class VirtualChunk {
+    /**
+     * Number of slices of every chunk, 25 slices of 1 MB
+     */
+    public static final int CHUNK_SLICES = 25;
+    /**
+     * Size of the buffer used to hash the chunks
+     */
+    private static final int HASH_BUFFER = 1024 * 1024;
+    private final Content parent;
+    private final int index;
+    private final long offset;
+    private final long length;
+    private final String hash;
+    private final String name;
+    private final int first_slice;
+    private final int slices;
+    /**
+     * True if the range is the whole file instead of a chunk of it
+     */
+    private final boolean whole;
+
+    private VirtualChunk(Content parent, int index, long offset, long length, String hash, String name,
+                         int first_slice, int slices, boolean whole) {
+        this.parent = parent;
+        this.index = index;
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+        this.name = name;
+        this.first_slice = first_slice;
+        this.slices = slices;
+        this.whole = whole;
+    }
+
+    /**
+     * Get a range covering a whole shared file, so whole files and chunks are served the same way
+     *
+     * @param content    The shared file
+     * @param slice_size The size of a slice in bytes
+     * @return The range of the whole file
+     */
+    public static VirtualChunk whole(Content content, int slice_size) {
+        File file = new File(content.getLocal_route());
+        return new VirtualChunk(content, 0, 0, file.length(), content.getHash(), file.getName(), 0,
+                (int) Math.ceil(file.length() / (float) slice_size), true);
+    }
+
+    /**
+     * Check if a file is big enough to be downloaded by chunks
+     *
+     * @param file_length The size of the file in bytes
+     * @param slice_size  The size of a slice in bytes
+     * @return True if it has more than CHUNK_SLICES slices
+     */
+    public static boolean is_chunked(long file_length, int slice_size) {
+        return file_length / slice_size > CHUNK_SLICES;
+    }
+
+    /**
+     * Describe a chunk of a file whose hash is already known
+     *
+     * @param parent       The file the chunk belongs to
+     * @param file_name    The name of the whole file, the chunk is named after it
+     * @param index        The index of the chunk
+     * @param hash         The hash of the chunk
+     * @param file_length  The size of the whole file in bytes
+     * @param chunks_total The number of chunks of the file
+     * @param slice_size   The size of a slice in bytes
+     * @return The chunk
+     */
+    public static VirtualChunk of(Content parent, String file_name, int index, String hash, long file_length, int chunks_total,
+                                  int slice_size) {
+        long chunk_size = (long) CHUNK_SLICES * slice_size;
+        long offset = index * chunk_size;
+        long length = Math.min(chunk_size, file_length - offset);
+        String name = String.format(".%0" + Integer.toString(chunks_total).length() + "d%s", index + 1, file_name);
+        return new VirtualChunk(parent, index, offset, length, hash, name, index * CHUNK_SLICES,
+                (int) Math.ceil(length / (float) slice_size), false);
+    }
+
+    /**
+     * Describe the chunks of a shared file, hashing every chunk in a single pass over the file
+     * Their names are the ones FileSlicer gives to the files of the chunks, .001name, .002name...
+     *
+     * @param content    The shared file
+     * @param slice_size The size of a slice in bytes
+     * @return The chunks, in order
+     * @throws IOException If reading the file fails
+     */
+    public static List<VirtualChunk> split(Content content, int slice_size) throws IOException {
+        File file = new File(content.getLocal_route());
+        long chunk_size = (long) CHUNK_SLICES * slice_size;
+        int chunks_total = (int) ((file.length() + chunk_size - 1) / chunk_size);
+        List<VirtualChunk> chunks = new ArrayList<>(chunks_total);
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long file_length = channel.size();
+            for (int i = 0; i < chunks_total; i++) {
+                long offset = i * chunk_size;
+                long length = Math.min(chunk_size, file_length - offset);
+                crc.reset();
+                long hashed = 0;
+                while (hashed < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - hashed));
+                    int read = channel.read(buffer, offset + hashed);
+                    if (read < 0) {
+                        throw new IOException(file.getName() + " shrank while being hashed");
+                    }
+                    crc.update(buffer.array(), 0, read);
+                    hashed += read;
+                }
+                chunks.add(of(content, file.getName(), i, Long.toHexString(crc.getValue()), file_length, chunks_total, slice_size));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * @return The shared file the chunk belongs to
+     */
+    public Content getParent() {
+        return parent;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The index in the whole file of the first slice of the chunk
+     */
+    public int getFirst_slice() {
+        return first_slice;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public boolean is_whole() {
+        return whole;
+    }
+}